@@ -0,0 +1,6 @@
+#!/bin/bash -eu
+# Builds the JMH suite and runs it; extra arguments are passed to JMH, e.g. a benchmark name regex.
+# Results are written to bench-{version}.json; compare two versions with any JMH results viewer.
+version=$(git describe --always --dirty 2>/dev/null || echo local)
+mvn -B -q -Pbenchmarks package -DskipTests
+java -jar target/benchmarks.jar -rf json -rff "bench-$version.json" "$@"
@@ -0,0 +1,97 @@
+package pfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups against an index of 1k and 1M files. Entries are published in memory with a shared
+ * content hash, so no file is read or hashed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileDirectoryBenchmark {
+    private static final int KEYWORD_COUNT = 10_000;
+    private static final int LOOKUP_COUNT = 1 << 12;
+
+    @Param({"1000", "1000000"})
+    public int fileCount;
+
+    private Path root;
+    private FileDirectory directory;
+    private String[] fileNames;
+    private String[] keywords;
+    private String[] keywordPrefixes;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.root = Files.createTempDirectory("pfs-bench");
+        this.directory = new FileDirectory(this.root.toString());
+        ContentHash contentHash = new ContentHash(Constants.TRANSFER_CHUNK_SIZE, new byte[][]{new byte[ContentHash.HASH_LENGTH]});
+        for (int i = 0; i < this.fileCount; i++) {
+            String keyword = "term" + (i % KEYWORD_COUNT) + " topic" + (i % 97);
+            this.directory.publishFile(new FileDirectory.FileEntry(String.format("f%07d.txt", i), keyword, 1024), contentHash);
+        }
+        Random random = new Random(1);
+        this.fileNames = new String[LOOKUP_COUNT];
+        this.keywords = new String[LOOKUP_COUNT];
+        this.keywordPrefixes = new String[LOOKUP_COUNT];
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            int file = random.nextInt(this.fileCount);
+            this.fileNames[i] = String.format("f%07d.txt", file);
+            this.keywords[i] = "term" + (file % KEYWORD_COUNT);
+            this.keywordPrefixes[i] = "term" + (file % KEYWORD_COUNT) / 10 + "*";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.root);
+    }
+
+    @Benchmark
+    public FileDirectory.FileEntry fileNameLookup() {
+        return this.directory.searchByFileName(this.fileNames[this.nextIndex()]);
+    }
+
+    @Benchmark
+    public List<FileDirectory.FileEntry> keywordSearch() {
+        return this.directory.search(true, this.keywords[this.nextIndex()], Constants.SEARCH_MAX_MATCHES);
+    }
+
+    @Benchmark
+    public List<FileDirectory.FileEntry> keywordPrefixSearch() {
+        return this.directory.search(true, this.keywordPrefixes[this.nextIndex()], Constants.SEARCH_MAX_MATCHES);
+    }
+
+    @Benchmark
+    public List<FileDirectory.FileEntry> fileNameSubstringSearch() {
+        String fileName = this.fileNames[this.nextIndex()];
+        return this.directory.search(false, "*" + fileName.substring(2, 6) + "*", Constants.SEARCH_MAX_MATCHES);
+    }
+
+    private int nextIndex() {
+        return this.next++ & (LOOKUP_COUNT - 1);
+    }
+}
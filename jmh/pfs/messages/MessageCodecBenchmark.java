@@ -0,0 +1,97 @@
+package pfs.messages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes one frame of every message type, in both codec versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+    @Param({"QUERY", "REPLY", "HANGUP", "HELLO", "SUMMARY", "DEGREE"})
+    public String type;
+
+    @Param({"1", "2"})
+    public int version;
+
+    private Message message;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.message = MessageCodecBenchmark.sampleMessage(this.type);
+        this.encodeBuffer = ByteBuffer.allocate(1 << 20);
+        this.frame = ByteBuffer.allocate(1 << 20);
+        MessageCodec.writeFrame(this.frame, this.message, this.version);
+        this.frame.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        this.encodeBuffer.clear();
+        MessageCodec.writeFrame(this.encodeBuffer, this.message, this.version);
+        return this.encodeBuffer;
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        this.frame.rewind();
+        return MessageCodec.readFrame(this.frame, this.version);
+    }
+
+    private static Message sampleMessage(String type) throws IOException {
+        InetAddress initiator = InetAddress.getByName("10.0.0.1");
+        DiscoveryQueryMessage query = new DiscoveryQueryMessage(initiator, 4242, System.currentTimeMillis() + 1000, 4, true, "report*,2024");
+        switch (type) {
+            case "QUERY":
+                return query;
+            case "REPLY":
+                List<DiscoveryReplyMessage.Match> matches = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    matches.add(new DiscoveryReplyMessage.Match("report 2024 q" + i, "report-2024-q" + i + ".txt", new byte[32]));
+                }
+                return new DiscoveryReplyMessage(query, InetAddress.getByName("10.0.0.2"), matches);
+            case "HANGUP":
+                return new HangupMessage(InetAddress.getByName("10.0.0.3"));
+            case "HELLO":
+                return new HelloMessage(MessageCodec.CURRENT_VERSION, true);
+            case "SUMMARY":
+                // default routing summary shape, a few hundred terms per level
+                Random random = new Random(1);
+                long[][] levels = new long[3][(1 << 15) / Long.SIZE];
+                for (long[] level : levels) {
+                    for (int i = 0; i < 1024; i++) {
+                        int bit = random.nextInt(level.length * Long.SIZE);
+                        level[bit >>> 6] |= 1L << bit;
+                    }
+                }
+                return new RoutingSummaryMessage(4, levels);
+            case "DEGREE":
+                return new DegreeMessage(6);
+        }
+        throw new IllegalArgumentException(type);
+    }
+}
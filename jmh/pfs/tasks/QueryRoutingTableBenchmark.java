@@ -0,0 +1,95 @@
+package pfs.tasks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The duplicate suppression and reverse-path bookkeeping every query and reply passes through,
+ * with expiry running in the background as it does in a node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryRoutingTableBenchmark {
+    private static final int KNOWN_QUERIES = 1 << 14;
+    private static final long TTL_MILLIS = 2000;
+
+    private QueryRoutingTable table;
+    private ScheduledExecutorService expiry;
+    private InetAddress[] initiators;
+    private InetAddress neighbor;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int sequenceId = Integer.MIN_VALUE / 2 + (int) Thread.currentThread().getId() * (1 << 24);
+        private int known;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        this.table = new QueryRoutingTable();
+        this.expiry = Executors.newSingleThreadScheduledExecutor();
+        this.expiry.scheduleAtFixedRate(() -> this.table.advance(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+        this.initiators = new InetAddress[64];
+        for (int i = 0; i < this.initiators.length; i++) {
+            this.initiators[i] = InetAddress.getByAddress(new byte[]{10, 0, 1, (byte) i});
+        }
+        this.neighbor = InetAddress.getByName("10.0.0.1");
+        // far future expiry, so the duplicates and replies below always find their entry
+        long expiration = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < KNOWN_QUERIES; i++) {
+            this.table.putIfAbsent(this.initiators[i & 63], i, expiration, this.neighbor, System.currentTimeMillis());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.expiry.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean newQuery(Cursor cursor) {
+        // new entries expire within the run, so expiry keeps sweeping
+        int sequenceId = cursor.sequenceId++;
+        long now = System.currentTimeMillis();
+        return this.table.putIfAbsent(this.initiators[sequenceId & 63], sequenceId, now + TTL_MILLIS, this.neighbor, now);
+    }
+
+    @Benchmark
+    public boolean duplicateQuery(Cursor cursor) {
+        int sequenceId = cursor.known++ & (KNOWN_QUERIES - 1);
+        long now = System.currentTimeMillis();
+        return this.table.putIfAbsent(this.initiators[sequenceId & 63], sequenceId, now + TTL_MILLIS, this.neighbor, now);
+    }
+
+    @Benchmark
+    public InetAddress routeReply(Cursor cursor) {
+        int sequenceId = cursor.known++ & (KNOWN_QUERIES - 1);
+        return this.table.getNeighbor(this.initiators[sequenceId & 63], sequenceId, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean newQueryContended(Cursor cursor) {
+        return this.newQuery(cursor);
+    }
+}
@@ -0,0 +1,108 @@
+package pfs.tasks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pfs.Constants;
+import pfs.FileDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-file downloads from a {@link TransferServer} over loopback, one connection per download.
+ * Throughput in bytes per second is the score times {@code fileSize}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferServerBenchmark {
+    private static final String FILE_NAME = "payload.txt";
+
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    private Path root;
+    private TransferServer server;
+    private InetSocketAddress serverAddress;
+    private ByteBuffer receiveBuffer;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        this.root = Files.createTempDirectory("pfs-bench");
+        try (FileChannel file = FileChannel.open(this.root.resolve(FILE_NAME), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap("benchmark\n".getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer block = ByteBuffer.allocate(1 << 16);
+            for (long written = 0; written < this.fileSize; written += block.capacity()) {
+                block.clear().limit((int) Math.min(block.capacity(), this.fileSize - written));
+                file.write(block);
+            }
+        }
+        this.server = new TransferServer(new FileDirectory(this.root.toString()));
+        Thread serverThread = new Thread(this.server);
+        serverThread.setName("transfer-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        this.server.waitForReady();
+        this.serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), Constants.TRANSFER_PORT);
+        this.receiveBuffer = ByteBuffer.allocateDirect(1 << 16);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.server.stop();
+        Files.deleteIfExists(this.root.resolve(FILE_NAME));
+        Files.deleteIfExists(this.root);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(this.serverAddress)) {
+            OutputStream output = Channels.newOutputStream(channel);
+            DataOutputStream request = new DataOutputStream(output);
+            request.writeUTF(FILE_NAME);
+            request.writeLong(0);
+            request.writeLong(this.fileSize);
+            request.flush();
+            DataInputStream response = new DataInputStream(Channels.newInputStream(channel));
+            if (response.readByte() != Constants.TRANSFER_STATUS_OK) {
+                throw new IOException("transfer refused");
+            }
+            long remaining = response.readLong();
+            while (remaining > 0) {
+                this.receiveBuffer.clear();
+                int bytesRead = channel.read(this.receiveBuffer);
+                if (bytesRead < 0) {
+                    throw new IOException("transfer cut short with " + remaining + " bytes left");
+                }
+                remaining -= bytesRead;
+            }
+            return remaining;
+        }
+    }
+}
@@ -0,0 +1,2 @@
+#!/bin/bash -eu
+java -Xmx3g -Dpfs.log.level=OFF -cp out/ pfs.Main --simulate "$@"
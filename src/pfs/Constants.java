@@ -1,7 +1,88 @@
 package pfs;
 
 public class Constants {
-    public static final int TRANSFER_PORT = 64630;
-    public static final int DISCOVERY_PORT = 64640;
-    public static final int TRACKER_PORT = 64650;
+    public static final int TRANSFER_PORT = Integer.getInteger("pfs.port.transfer", 64630);
+    public static final int DISCOVERY_PORT = Integer.getInteger("pfs.port.discovery", 64640);
+    public static final int TRACKER_PORT = Integer.getInteger("pfs.port.tracker", 64650);
+    // address a node listens on and is known by; empty for the host's address on every interface
+    public static final String NODE_ADDRESS = System.getProperty("pfs.node.address", "");
+
+    public static final byte TRACKER_JOIN = 0;
+    public static final byte TRACKER_LEAVE = 1;
+    public static final byte TRACKER_HEARTBEAT = 2;
+    public static final byte TRACKER_SAMPLE = 3;
+    public static final long TRACKER_LEASE_MILLIS = Long.getLong("pfs.tracker.leaseMillis", 30_000L);
+    public static final int TRACKER_SAMPLE_SIZE = Integer.getInteger("pfs.tracker.sampleSize", 32);
+    public static final int TRACKER_THREADS = Integer.getInteger("pfs.tracker.threads", 16);
+    public static final int TRACKER_BACKLOG = Integer.getInteger("pfs.tracker.backlog", 1024);
+    public static final int TRACKER_EXPIRY_INTERVAL_MILLIS = 1000;
+    public static final int TRACKER_REQUEST_TIMEOUT_MILLIS = 2000;
+    // empty to keep membership in memory only
+    public static final String TRACKER_JOURNAL_DIR = System.getProperty("pfs.tracker.journalDir", ".pfs-tracker");
+    public static final int TRACKER_JOURNAL_FLUSH_MILLIS = 50;
+
+    public static final int NEIGHBOR_MIN_DEGREE = Integer.getInteger("pfs.neighbors.minDegree", 3);
+    public static final int NEIGHBOR_MAX_DEGREE = Integer.getInteger("pfs.neighbors.maxDegree", 6);
+    public static final long NEIGHBOR_MAINTENANCE_MILLIS = Long.getLong("pfs.neighbors.intervalMillis", 10_000L);
+    public static final int NEIGHBOR_PROBE_CANDIDATES = 8;
+    public static final int NEIGHBOR_PROBE_TIMEOUT_MILLIS = 500;
+    // a candidate replaces the slowest neighbor only if it is at least this much closer
+    public static final double NEIGHBOR_SWAP_RTT_RATIO = 0.5;
+
+    public static final int DISCOVERY_EVENT_LOOPS = Integer.getInteger("pfs.discovery.eventLoops",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    // upper bound on the frames coalesced into one socket write
+    public static final int DISCOVERY_BATCH_BYTES = Integer.getInteger("pfs.discovery.batchBytes", 64 * 1024);
+    // how long a sender waits for more messages before writing; 0 writes at once
+    public static final long DISCOVERY_LINGER_MILLIS = Long.getLong("pfs.discovery.lingerMillis", 0L);
+    // per neighbor and priority class; the oldest queued query or reply is shed beyond it
+    public static final int DISCOVERY_QUEUE_CAPACITY = Integer.getInteger("pfs.discovery.queueCapacity", 1024);
+    public static final boolean DISCOVERY_TCP_NODELAY = Boolean.parseBoolean(System.getProperty("pfs.discovery.tcpNoDelay", "true"));
+    // 0 keeps the operating system's default
+    public static final int DISCOVERY_SEND_BUFFER = Integer.getInteger("pfs.discovery.sendBuffer", 0);
+    public static final int DISCOVERY_RECEIVE_BUFFER = Integer.getInteger("pfs.discovery.receiveBuffer", 0);
+
+    public static final int DIRECTORY_SCAN_THREADS = Integer.getInteger("pfs.directory.scanThreads",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    public static final int DIRECTORY_HASH_THREADS = Integer.getInteger("pfs.directory.hashThreads",
+            Runtime.getRuntime().availableProcessors());
+    public static final boolean DIRECTORY_WATCH = Boolean.parseBoolean(System.getProperty("pfs.directory.watch", "true"));
+    public static final int DIRECTORY_WATCH_DEBOUNCE_MILLIS = 200;
+    public static final int DIRECTORY_WATCH_MAX_DELAY_MILLIS = 2000;
+    public static final int DIRECTORY_RESCAN_INTERVAL_MILLIS = 10_000;
+
+    public static final int SEARCH_MAX_MATCHES = 64;
+
+    public static final int QUERY_CACHE_CAPACITY = Integer.getInteger("pfs.queryCache.capacity", 4096);
+    public static final long QUERY_CACHE_TTL_MILLIS = Long.getLong("pfs.queryCache.ttlMillis", 30_000L);
+    public static final int QUERY_CACHE_MAX_SOURCES = 8;
+
+    public static final boolean ROUTING_SUMMARIES = Boolean.parseBoolean(System.getProperty("pfs.routing.summaries", "true"));
+    public static final int ROUTING_SUMMARY_DEPTH = Integer.getInteger("pfs.routing.depth", 3);
+    public static final int ROUTING_SUMMARY_BITS = Integer.getInteger("pfs.routing.bloomBits", 1 << 15);
+    public static final int ROUTING_SUMMARY_HASHES = 4;
+    public static final long ROUTING_SUMMARY_INTERVAL_MILLIS = Long.getLong("pfs.routing.intervalMillis", 2000L);
+
+    public static final int TRANSFER_CHUNK_SIZE = 1 << 20;
+    public static final int TRANSFER_STALL_MILLIS = 2000;
+    public static final int TRANSFER_MAX_FAILURES = 3;
+
+    public static final int TRANSFER_MAX_UPLOADS = Integer.getInteger("pfs.transfer.maxUploads", 32);
+    public static final int TRANSFER_THREADS = Integer.getInteger("pfs.transfer.threads", 64);
+    public static final int TRANSFER_BACKLOG = Integer.getInteger("pfs.transfer.backlog", 256);
+    public static final boolean TRANSFER_VIRTUAL_THREADS = Boolean.getBoolean("pfs.transfer.virtualThreads");
+    public static final int TRANSFER_RETRY_AFTER_MILLIS = 500;
+    public static final int TRANSFER_MAX_BUSY_RETRIES = 20;
+
+    // a request with this length asks for the chunk hashes instead of content
+    public static final long TRANSFER_REQUEST_HASHES = -1;
+
+    public static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("pfs.metrics.jmx", "true"));
+    // local port of the plain-text metrics endpoint; 0 disables it
+    public static final int METRICS_PORT = Integer.getInteger("pfs.metrics.port", 0);
+
+    public static final byte TRANSFER_STATUS_OK = 0;
+    public static final byte TRANSFER_STATUS_NOT_FOUND = 1;
+    public static final byte TRANSFER_STATUS_BUSY = 2;
 }
@@ -0,0 +1,122 @@
+package pfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 Merkle tree over the fixed-size chunks of a file's content.
+ * Leaves hash {@code 0x00 || chunk}, inner nodes hash {@code 0x01 || left || right} and an odd
+ * node is promoted unchanged. The root identifies the content regardless of file name or keyword,
+ * and the leaves let a downloader check every chunk on its own.
+ */
+public class ContentHash {
+    public static final int HASH_LENGTH = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[] root;
+    private final int chunkSize;
+    private final byte[][] chunkHashes;
+
+    public ContentHash(int chunkSize, byte[][] chunkHashes) {
+        this.chunkSize = chunkSize;
+        this.chunkHashes = chunkHashes;
+        this.root = ContentHash.merkleRoot(chunkHashes);
+    }
+
+    public byte[] getRoot() {return this.root;}
+
+    public int getChunkSize() {return this.chunkSize;}
+
+    public byte[][] getChunkHashes() {return this.chunkHashes;}
+
+    public String toHex() {
+        return ContentHash.toHex(this.root);
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(2 * hash.length);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hashes the content region of a file, reading it in chunk-sized pieces.
+     */
+    public static ContentHash compute(FileChannel channel, long headerLength, long contentLength, int chunkSize) throws IOException {
+        int chunkCount = (int) ((contentLength + chunkSize - 1) / chunkSize);
+        byte[][] chunkHashes = new byte[chunkCount][];
+        MessageDigest digest = ContentHash.newChunkDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            long position = headerLength + (long) chunk * chunkSize;
+            long remaining = Math.min(chunkSize, contentLength - (long) chunk * chunkSize);
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead < 0) {
+                    throw new IOException("file shorter than its recorded length");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+            chunkHashes[chunk] = digest.digest();
+            digest.update(LEAF_PREFIX);
+        }
+        return new ContentHash(chunkSize, chunkHashes);
+    }
+
+    /**
+     * @return a digest already primed with the leaf prefix; feed it one chunk and call {@code digest()}
+     */
+    public static MessageDigest newChunkDigest() {
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(LEAF_PREFIX);
+        return digest;
+    }
+
+    public boolean verifyChunk(int chunk, byte[] chunkHash) {
+        return chunk < this.chunkHashes.length && MessageDigest.isEqual(this.chunkHashes[chunk], chunkHash);
+    }
+
+    public static byte[] merkleRoot(byte[][] leaves) {
+        MessageDigest digest = ContentHash.newDigest();
+        if (leaves.length == 0) {
+            digest.update(LEAF_PREFIX);
+            return digest.digest();
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                } else {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                }
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
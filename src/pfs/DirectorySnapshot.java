@@ -0,0 +1,139 @@
+package pfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk copy of a {@link FileDirectory} index, written on clean shutdown and memory-mapped on
+ * the next start. It is only trusted while the data directory's modification time still matches,
+ * which changes whenever a file is added, removed or renamed there. Rewriting a file in place
+ * leaves the directory alone, so each entry also records the size and modification time its file
+ * was read with, and the caller re-reads every file whose size or time no longer match.
+ * <p>
+ * Layout: magic, version, directory mtime, entry count, CRC32 of the entries, then per entry the
+ * UTF-8 file name and keyword line (each prefixed by an int length), the file size and mtime, the
+ * content length, and the chunk size and chunk hashes of its {@link ContentHash} (chunk size 0 if
+ * not hashed yet).
+ */
+class DirectorySnapshot {
+    private static final int MAGIC = 0x50465349; // "PFSI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private DirectorySnapshot() {}
+
+    /**
+     * @return the snapshot entries, or null if there is no usable snapshot for this directory state
+     */
+    static List<FileDirectory.FileEntry> load(Path snapshotPath, long directoryMillis) {
+        if (!Files.isRegularFile(snapshotPath)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != directoryMillis) {
+                return null;
+            }
+            int count = buffer.getInt();
+            long checksum = buffer.getLong();
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            List<FileDirectory.FileEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String fileName = DirectorySnapshot.readString(buffer);
+                String keyword = DirectorySnapshot.readString(buffer);
+                long fileSize = buffer.getLong();
+                long modifiedMillis = buffer.getLong();
+                long contentLength = buffer.getLong();
+                ContentHash contentHash = null;
+                int chunkSize = buffer.getInt();
+                if (chunkSize > 0) {
+                    byte[][] chunkHashes = new byte[buffer.getInt()][ContentHash.HASH_LENGTH];
+                    for (byte[] chunkHash : chunkHashes) {
+                        buffer.get(chunkHash);
+                    }
+                    // hashes over a different chunk size cannot verify transfers: rehash instead
+                    if (chunkSize == Constants.TRANSFER_CHUNK_SIZE) {
+                        contentHash = new ContentHash(chunkSize, chunkHashes);
+                    }
+                }
+                entries.add(new FileDirectory.FileEntry(fileName, keyword, contentLength, contentHash, fileSize, modifiedMillis));
+            }
+            return entries;
+        } catch (IOException | RuntimeException e) {
+            // unreadable or truncated snapshot: fall back to scanning
+            return null;
+        }
+    }
+
+    static void save(Path snapshotPath, long directoryMillis, Collection<FileDirectory.FileEntry> entries) throws IOException {
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // entries go after the header, which is filled in once the count and checksum are known
+            channel.position(HEADER_SIZE);
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            int count = 0;
+            for (FileDirectory.FileEntry entry : entries) {
+                byte[] fileName = entry.fileName.getBytes(StandardCharsets.UTF_8);
+                byte[] keyword = entry.keyword.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(fileName.length);
+                out.write(fileName);
+                out.writeInt(keyword.length);
+                out.write(keyword);
+                out.writeLong(entry.getFileSize());
+                out.writeLong(entry.getModifiedMillis());
+                out.writeLong(entry.contentLength);
+                ContentHash contentHash = entry.getContentHash();
+                if (contentHash == null) {
+                    out.writeInt(0);
+                } else {
+                    out.writeInt(contentHash.getChunkSize());
+                    out.writeInt(contentHash.getChunkHashes().length);
+                    for (byte[] chunkHash : contentHash.getChunkHashes()) {
+                        out.write(chunkHash);
+                    }
+                }
+                count++;
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(directoryMillis).putInt(count).putLong(checked.getChecksum().getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
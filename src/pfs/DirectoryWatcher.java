@@ -0,0 +1,113 @@
+package pfs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link FileDirectory} in step with files added, changed or removed by other tools.
+ * Events are collected until the directory has been quiet for a short while (or a batch has
+ * waited too long) and then applied file by file. If the event queue overflows, the whole
+ * directory is rescanned instead, at most once per rescan interval.
+ */
+public class DirectoryWatcher {
+    private final FileDirectory directory;
+    private final Thread watcherThread;
+    private WatchService watchService;
+    private long lastRescanMillis;
+
+    public DirectoryWatcher(FileDirectory directory) {
+        this.directory = directory;
+        this.watcherThread = new Thread(this::runWatcher);
+        this.watcherThread.setName("directory-watcher");
+        this.watcherThread.setDaemon(true);
+    }
+
+    public void start() throws IOException {
+        Path root = this.directory.getRoot();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        root.register(this.watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.watcherThread.start();
+    }
+
+    public void stop() throws IOException {
+        this.watcherThread.interrupt();
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+    }
+
+    private void runWatcher() {
+        Set<String> pending = new LinkedHashSet<>();
+        boolean overflow = false;
+        long batchStartMillis = 0;
+        try {
+            while (!Thread.interrupted()) {
+                WatchKey key = pending.isEmpty() && !overflow
+                        ? this.watchService.take()
+                        : this.watchService.poll(Constants.DIRECTORY_WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    if (batchStartMillis == 0) {
+                        batchStartMillis = System.currentTimeMillis();
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            pending.add(((Path) event.context()).getFileName().toString());
+                        }
+                    }
+                    if (!key.reset()) {
+                        EventLog.text(EventLog.Level.WARN, "directory-watcher: " + this.directory.getRoot() + " is no longer accessible");
+                        return;
+                    }
+                    // keep collecting while the burst lasts, but not forever
+                    if (System.currentTimeMillis() - batchStartMillis < Constants.DIRECTORY_WATCH_MAX_DELAY_MILLIS) {
+                        continue;
+                    }
+                }
+
+                if (overflow) {
+                    this.rescan();
+                } else {
+                    for (String fileName : pending) {
+                        try {
+                            this.directory.refreshFile(fileName);
+                        } catch (IOException e) {
+                            EventLog.text(EventLog.Level.WARN, "directory-watcher: could not index " + fileName + ": " + e.getMessage());
+                        }
+                    }
+                    EventLog.text(EventLog.Level.DEBUG, "directory-watcher: applied " + pending.size() + " changes");
+                }
+                pending.clear();
+                overflow = false;
+                batchStartMillis = 0;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void rescan() throws InterruptedException {
+        long waitMillis = this.lastRescanMillis + Constants.DIRECTORY_RESCAN_INTERVAL_MILLIS - System.currentTimeMillis();
+        if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+        }
+        this.lastRescanMillis = System.currentTimeMillis();
+        try {
+            this.directory.rescan();
+            EventLog.text(EventLog.Level.INFO, "directory-watcher: rescanned after lost events");
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, "directory-watcher: rescan failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package pfs;
+
+import pfs.messages.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled event log written by a background thread.
+ * Callers only copy a few references into a preallocated slot of a lock-free ring buffer;
+ * formatting and reverse DNS lookups (cached per address) happen on the writer thread.
+ * When the ring is full, events are dropped and counted rather than blocking the caller.
+ * The writer parks while the ring is empty and is unparked by the next event.
+ * The level is set with {@code -Dpfs.log.level=OFF|WARN|INFO|DEBUG} (default INFO).
+ */
+public final class EventLog {
+    public enum Level {OFF, WARN, INFO, DEBUG}
+
+    private static final Level LEVEL = EventLog.parseLevel(System.getProperty("pfs.log.level", "INFO"));
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long written;
+    private static final ConcurrentMap<InetAddress, String> hostNames = new ConcurrentHashMap<>();
+    private static volatile Thread writerThread;
+    private static volatile boolean writerParked;
+
+    private static class Event {
+        private long timestamp;
+        private String label;
+        private InetAddress address;
+        private Message message;
+        private int hopCount; // snapshot, since query messages are mutated while forwarding
+        private InetAddress[] addresses;
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    private EventLog() {}
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[event-log] unknown pfs.log.level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return LEVEL != Level.OFF && level.compareTo(LEVEL) <= 0;
+    }
+
+    public static void text(Level level, String text) {
+        if (EventLog.isEnabled(level)) {
+            EventLog.publish(text, null, null, null);
+        }
+    }
+
+    /**
+     * Logs {@code label} followed by the host name of {@code address}.
+     */
+    public static void address(Level level, String label, InetAddress address) {
+        if (EventLog.isEnabled(level)) {
+            EventLog.publish(label, address, null, null);
+        }
+    }
+
+    public static void addresses(Level level, String label, Collection<InetAddress> addresses) {
+        if (EventLog.isEnabled(level)) {
+            EventLog.publish(label, null, null, addresses.toArray(new InetAddress[0]));
+        }
+    }
+
+    /**
+     * Logs a message sent to or received from {@code via}; {@code eventType} is SEND or RECV.
+     */
+    public static void message(Level level, String eventType, InetAddress via, Message message) {
+        if (EventLog.isEnabled(level)) {
+            EventLog.publish(eventType, via, message, null);
+        }
+    }
+
+    public static String hostName(InetAddress address) {
+        return hostNames.computeIfAbsent(address, InetAddress::getCanonicalHostName);
+    }
+
+    private static void publish(String label, InetAddress address, Message message, InetAddress[] addresses) {
+        EventLog.ensureWriter();
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get((int) position & MASK);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // writer has not caught up: drop instead of stalling the caller
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        Event event = ring[(int) position & MASK];
+        event.timestamp = System.currentTimeMillis();
+        event.label = label;
+        event.address = address;
+        event.message = message;
+        event.hopCount = message instanceof DiscoveryQueryMessage ? ((DiscoveryQueryMessage) message).hopCount : 0;
+        event.addresses = addresses;
+        sequences.set((int) position & MASK, position + 1);
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static void ensureWriter() {
+        if (writerThread == null) {
+            synchronized (EventLog.class) {
+                if (writerThread == null) {
+                    Thread thread = new Thread(EventLog::runWriter);
+                    thread.setName("event-log");
+                    thread.setDaemon(true);
+                    thread.start();
+                    writerThread = thread;
+                    // give the writer a moment to drain pending events on exit
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        long deadline = System.currentTimeMillis() + 500;
+                        while (written < tail.get() && System.currentTimeMillis() < deadline) {
+                            LockSupport.parkNanos(1_000_000L);
+                        }
+                    }));
+                }
+            }
+        }
+    }
+
+    private static void runWriter() {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder sb = new StringBuilder();
+        long head = 0;
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                int index = (int) head & MASK;
+                if (sequences.get(index) != head + 1) {
+                    out.flush();
+                    written = head;
+                    long drops = dropped.get();
+                    if (drops != reportedDrops) {
+                        out.write("[event-log] dropped " + (drops - reportedDrops) + " events\n");
+                        reportedDrops = drops;
+                    }
+                    // announce the park before the last look, so an event published meanwhile unparks us
+                    writerParked = true;
+                    if (sequences.get(index) != head + 1) {
+                        LockSupport.park();
+                    }
+                    writerParked = false;
+                    continue;
+                }
+                Event event = ring[index];
+                sb.setLength(0);
+                EventLog.format(sb, event);
+                event.label = null;
+                event.address = null;
+                event.message = null;
+                event.addresses = null;
+                sequences.set(index, head + CAPACITY);
+                head++;
+                out.append(sb);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void format(StringBuilder sb, Event event) {
+        Message message = event.message;
+        if (message == null) {
+            sb.append(event.label);
+            if (event.address != null) {
+                sb.append(' ').append(EventLog.hostName(event.address));
+            }
+            if (event.addresses != null) {
+                sb.append('\n');
+                for (InetAddress address : event.addresses) {
+                    sb.append(EventLog.hostName(address)).append('\n');
+                }
+            }
+            sb.append('\n');
+            return;
+        }
+
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(event.timestamp), ZoneId.systemDefault());
+        sb.append('[').append(time).append("] ").append(event.label)
+                .append(" VIA ").append(EventLog.hostName(event.address)).append(" | ");
+        if (message instanceof DiscoveryMessage) {
+            DiscoveryMessage discoveryMessage = (DiscoveryMessage) message;
+            LocalDateTime expirationTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(discoveryMessage.expiration), ZoneId.systemDefault());
+            sb.append("DISC ").append(EventLog.hostName(discoveryMessage.initiator))
+                    .append(" (").append(discoveryMessage.sequenceId).append(") EXPIRES ").append(expirationTime).append(" | ");
+            if (message instanceof DiscoveryQueryMessage) {
+                DiscoveryQueryMessage queryMessage = (DiscoveryQueryMessage) discoveryMessage;
+                sb.append("QUERY ").append(queryMessage.isKeywordSearch ? "KW" : "FN").append(": ").append(queryMessage.filter).append(" | ");
+                sb.append("HOPCOUNT ").append(event.hopCount);
+            } else if (message instanceof DiscoveryReplyMessage) {
+                DiscoveryReplyMessage replyMessage = (DiscoveryReplyMessage) discoveryMessage;
+                DiscoveryReplyMessage.Match match = replyMessage.matches.get(0);
+                sb.append("REPLY KW: ").append(match.keyword).append(" FN: ").append(match.fileName);
+                if (replyMessage.matches.size() > 1) {
+                    sb.append(" (+").append(replyMessage.matches.size() - 1).append(" more)");
+                }
+                sb.append(" | ");
+                sb.append("TERMINATOR ").append(EventLog.hostName(replyMessage.terminator));
+            }
+        } else if (message instanceof HangupMessage) {
+            HangupMessage hangupMessage = (HangupMessage) message;
+            sb.append("HUP HANDOFF ").append(EventLog.hostName(hangupMessage.handoffAddress));
+        } else if (message instanceof RoutingSummaryMessage) {
+            sb.append("SUMMARY LEVELS ").append(((RoutingSummaryMessage) message).levels.length);
+        } else if (message instanceof DegreeMessage) {
+            sb.append("DEGREE ").append(((DegreeMessage) message).degree);
+        }
+        sb.append('\n');
+    }
+}
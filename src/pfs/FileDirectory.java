@@ -1,84 +1,676 @@
 package pfs;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Files shared by this node. The first line of each file holds its keywords, separated by
+ * whitespace or commas; the rest is content.
+ * <p>
+ * Keyword terms and file names are kept in inverted indexes over sorted maps, so a search
+ * filter may be an exact term, a prefix ({@code mov*}) or a substring ({@code *ovi*}), and
+ * several keyword terms must all match. A file name filter is one pattern over the whole name.
+ * <p>
+ * Every file's content is also hashed into a {@link ContentHash} in the background, so identical
+ * content can be found by hash and downloads can check each chunk.
+ */
 public class FileDirectory {
+    public static final String PROGRESS_SUFFIX = ".progress";
+    public static final char WILDCARD = '*';
+
     public static class FileEntry {
         public final String fileName;
-        public final String keyword;
+        public final String keyword; // the raw header line, which may hold several terms
+        public final long headerLength; // offset of content past the keyword line
         public final long contentLength;
+        private volatile ContentHash contentHash; // null until hashed
+        // the file's size and modification time when it was read, or -1 if unknown; set before the entry is published
+        private long fileSize = -1;
+        private long modifiedMillis = -1;
 
         public FileEntry(String fileName, String keyword, long contentLength) {
             this.fileName = fileName;
             this.keyword = keyword;
+            this.headerLength = FileDirectory.headerLengthOf(keyword);
             this.contentLength = contentLength;
         }
+
+        FileEntry(String fileName, String keyword, long contentLength, ContentHash contentHash, long fileSize, long modifiedMillis) {
+            this(fileName, keyword, contentLength);
+            this.contentHash = contentHash;
+            this.fileSize = fileSize;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        public ContentHash getContentHash() {return this.contentHash;}
+
+        long getFileSize() {return this.fileSize;}
+
+        long getModifiedMillis() {return this.modifiedMillis;}
+
+        /**
+         * @return whether the file at {@code path} still has the size and modification time this entry was read with
+         */
+        boolean isCurrent(Path path) throws IOException {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return this.hasStamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+
+        private boolean hasStamp(long fileSize, long modifiedMillis) {
+            return this.modifiedMillis >= 0 && this.fileSize == fileSize && this.modifiedMillis == modifiedMillis;
+        }
+
+        private void stamp(BasicFileAttributes attributes) {
+            this.fileSize = attributes.size();
+            this.modifiedMillis = attributes.lastModifiedTime().toMillis();
+        }
     }
 
     private final Path root;
+    private final Path snapshotPath;
     private final ConcurrentMap<String, FileEntry> fileNameMap;
-    private final ConcurrentMap<String, FileEntry> keywordMap;
+    private final TermIndex keywordIndex;
+    private final TermIndex fileNameIndex;
+    private final ConcurrentMap<String, FileEntry> contentHashMap; // hex root -> one file with that content
+    private final ExecutorService hashExecutor;
 
     public FileDirectory(String directory) {
         this.root = Paths.get(directory);
+        // kept beside the data directory so it is never shared as a file
+        Path absoluteRoot = this.root.toAbsolutePath().normalize();
+        this.snapshotPath = absoluteRoot.resolveSibling("." + absoluteRoot.getFileName() + ".index");
         this.fileNameMap = new ConcurrentHashMap<>();
-        this.keywordMap = new ConcurrentHashMap<>();
-        try (DirectoryStream<Path> pathStream = Files.newDirectoryStream(this.root)) {
-            for (Path path : pathStream) {
-                String fileName = path.getFileName().toString();
-                String keyword;
-                try (BufferedReader br = Files.newBufferedReader(path)) {
-                    keyword = br.readLine();
+        this.contentHashMap = new ConcurrentHashMap<>();
+        AtomicInteger hasherCount = new AtomicInteger();
+        this.hashExecutor = Executors.newFixedThreadPool(Constants.DIRECTORY_HASH_THREADS, (Runnable task) -> {
+            Thread thread = new Thread(task);
+            thread.setName("content-hasher-" + hasherCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long directoryMillis = Files.getLastModifiedTime(this.root).toMillis();
+            List<FileEntry> snapshot = DirectorySnapshot.load(this.snapshotPath, directoryMillis);
+            List<FileEntry> entries = snapshot == null ? this.scan() : this.readInParallel(snapshot, this::revalidate);
+            // group terms up front so the sorted indexes are built in bulk rather than entry by entry
+            Map<String, Set<FileEntry>> keywordTerms = new HashMap<>();
+            Map<String, Set<FileEntry>> fileNameTerms = new HashMap<>();
+            for (FileEntry entry : entries) {
+                this.fileNameMap.put(entry.fileName, entry);
+                for (String term : FileDirectory.termsOf(entry.keyword)) {
+                    keywordTerms.computeIfAbsent(term, (String key) -> ConcurrentHashMap.newKeySet()).add(entry);
                 }
-                long totalLength = Files.size(path);
-                long contentLength = totalLength - keyword.getBytes().length - 1;
-                FileEntry entry = new FileEntry(fileName, keyword, contentLength);
-                this.fileNameMap.put(fileName, entry);
-                this.keywordMap.put(keyword, entry);
+                fileNameTerms.computeIfAbsent(entry.fileName.toLowerCase(Locale.ROOT), (String key) -> ConcurrentHashMap.newKeySet()).add(entry);
+            }
+            this.keywordIndex = new TermIndex(keywordTerms);
+            this.fileNameIndex = new TermIndex(fileNameTerms);
+            for (FileEntry entry : entries) {
+                this.indexContentHash(entry);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Writes the index next to the data directory so the next start can skip the scan.
+     */
+    public void saveSnapshot() throws IOException {
+        // read the time first: changes made while saving then invalidate the snapshot
+        long directoryMillis = Files.getLastModifiedTime(this.root).toMillis();
+        DirectorySnapshot.save(this.snapshotPath, directoryMillis, new ArrayList<>(this.fileNameMap.values()));
+    }
+
+    /**
+     * @return the snapshot's entry if its file is unchanged, a fresh one if it was rewritten in place, or null if it is gone
+     */
+    private FileEntry revalidate(FileEntry entry) throws IOException {
+        Path path = this.root.resolve(entry.fileName);
+        if (entry.isCurrent(path)) {
+            return entry;
+        }
+        return Files.isRegularFile(path) ? this.readEntry(entry.fileName) : null;
+    }
+
+    private List<FileEntry> scan() throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> pathStream = Files.newDirectoryStream(this.root)) {
+            for (Path path : pathStream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        List<String> fileNames = new ArrayList<>();
+        for (String fileName : names) {
+            // skip download bookkeeping and files that are still being downloaded
+            if (!fileName.endsWith(PROGRESS_SUFFIX) && !names.contains(fileName + PROGRESS_SUFFIX)) {
+                fileNames.add(fileName);
+            }
+        }
+
+        return this.readInParallel(fileNames, this::readEntry);
+    }
+
+    private interface EntryReader<T> {
+        /**
+         * @return the entry for {@code item}, or null to leave it out
+         */
+        FileEntry read(T item) throws IOException;
+    }
+
+    private <T> List<FileEntry> readInParallel(List<T> items, EntryReader<T> reader) throws IOException {
+        // reading headers is dominated by open and read latency, so spread it over several threads
+        int threads = Math.max(1, Math.min(Constants.DIRECTORY_SCAN_THREADS, items.size() / 64));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<FileEntry>>> slices = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                List<T> slice = items.subList(i * items.size() / threads, (i + 1) * items.size() / threads);
+                slices.add(executor.submit(() -> {
+                    List<FileEntry> entries = new ArrayList<>(slice.size());
+                    for (T item : slice) {
+                        FileEntry entry = reader.read(item);
+                        if (entry != null) {
+                            entries.add(entry);
+                        }
+                    }
+                    return entries;
+                }));
+            }
+            List<FileEntry> entries = new ArrayList<>(items.size());
+            for (Future<List<FileEntry>> slice : slices) {
+                entries.addAll(slice.get());
+            }
+            return entries;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while scanning " + this.root);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private FileEntry readEntry(String fileName) throws IOException {
+        Path path = this.root.resolve(fileName);
+        // stat before reading, so a change made meanwhile shows up as a stale stamp later
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        // one open per file: the header and the size both come from the same channel
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            readHeader:
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        break readHeader;
+                    }
+                    header.write(b);
+                }
+                buffer.clear();
+            }
+            String keyword = header.toString(StandardCharsets.UTF_8);
+            FileEntry entry = new FileEntry(fileName, keyword, channel.size() - FileDirectory.headerLengthOf(keyword));
+            entry.stamp(attributes);
+            return entry;
+        }
+    }
+
+    /**
+     * @return one file carrying the keyword term, or null
+     */
     public FileEntry searchByKeyword(String keyword) {
-        return keywordMap.get(keyword);
+        List<FileEntry> entries = this.search(true, keyword, 1);
+        return entries.isEmpty() ? null : entries.get(0);
     }
 
     public FileEntry searchByFileName(String fileName) {
         return fileNameMap.get(fileName);
     }
 
-    public void createFile(String fileName, String keyword, long contentLength) throws IOException {
+    /**
+     * Finds every file matching all patterns of {@code filter}, up to {@code limit} files.
+     * Each pattern is matched exactly, by prefix ({@code term*}) or as a substring ({@code *term*}).
+     */
+    public List<FileEntry> search(boolean isKeywordSearch, String filter, int limit) {
+        TermIndex index = isKeywordSearch ? this.keywordIndex : this.fileNameIndex;
+        Set<FileEntry> matches = null;
+        for (String term : FileDirectory.patternsOf(isKeywordSearch, filter)) {
+            Set<FileEntry> termMatches = index.match(term);
+            if (matches == null) {
+                matches = termMatches;
+            } else {
+                matches.retainAll(termMatches);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        List<FileEntry> results = new ArrayList<>();
+        if (matches != null) {
+            for (FileEntry entry : matches) {
+                if (results.size() == limit) {
+                    break;
+                }
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return a live view of the distinct keyword terms of all shared files
+     */
+    public Set<String> keywordTerms() {
+        return Collections.unmodifiableSet(this.keywordIndex.terms.keySet());
+    }
+
+    /**
+     * @return a live view of the lower-case names of all shared files
+     */
+    public Set<String> fileNameTerms() {
+        return Collections.unmodifiableSet(this.fileNameIndex.terms.keySet());
+    }
+
+    /**
+     * Splits a search filter into the lower-case patterns a file must all match: a keyword search
+     * into its terms, a file name search into one pattern for the whole name, which may hold spaces
+     * or commas.
+     */
+    public static List<String> patternsOf(boolean isKeywordSearch, String filter) {
+        if (isKeywordSearch) {
+            return FileDirectory.termsOf(filter);
+        }
+        String pattern = filter.toLowerCase(Locale.ROOT);
+        return pattern.isEmpty() ? Collections.emptyList() : Collections.singletonList(pattern);
+    }
+
+    /**
+     * Splits a keyword line or keyword search filter into lower-case terms.
+     */
+    public static List<String> termsOf(String text) {
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>(2);
+        int start = 0;
+        for (int i = 0; i <= lowerText.length(); i++) {
+            if (i == lowerText.length() || lowerText.charAt(i) == ',' || Character.isWhitespace(lowerText.charAt(i))) {
+                if (i > start) {
+                    String term = lowerText.substring(start, i);
+                    if (!terms.contains(term)) {
+                        terms.add(term);
+                    }
+                }
+                start = i + 1;
+            }
+        }
+        return terms;
+    }
+
+    public FileEntry createFile(String fileName, String keyword, long contentLength) throws IOException {
         FileEntry entry = new FileEntry(fileName, keyword, contentLength);
-        this.fileNameMap.put(fileName, entry);
-        this.keywordMap.put(keyword, entry);
         Path path = root.resolve(fileName);
         try (BufferedWriter bw = Files.newBufferedWriter(path)) {
             bw.write(keyword);
             bw.write('\n');
         }
+        // preallocate the content region so chunks can be written at any position
+        if (contentLength > 0) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(1), entry.headerLength + contentLength - 1);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Shares a copy of a local file's content under another name and keyword.
+     */
+    public FileEntry copyFile(FileEntry source, String fileName, String keyword) throws IOException {
+        // a progress marker keeps the watcher from indexing the half-written copy
+        Path marker = this.progressPath(fileName);
+        Files.write(marker, new byte[0]);
+        try {
+            FileEntry entry = this.createFile(fileName, keyword, source.contentLength);
+            try (FileChannel in = this.openFileChannel(source.fileName); FileChannel out = this.newFileChannel(fileName)) {
+                out.position(entry.headerLength);
+                long copied = 0;
+                while (copied < source.contentLength) {
+                    long bytesCopied = in.transferTo(source.headerLength + copied, source.contentLength - copied, out);
+                    if (bytesCopied <= 0) {
+                        throw new IOException(source.fileName + " is shorter than its recorded length");
+                    }
+                    copied += bytesCopied;
+                }
+            }
+            this.publishFile(entry, source.getContentHash());
+            return entry;
+        } finally {
+            Files.deleteIfExists(marker);
+        }
+    }
+
+    public FileEntry openPartialFile(String fileName, String keyword, long contentLength) throws IOException {
+        FileEntry entry = new FileEntry(fileName, keyword, contentLength);
+        Path path = root.resolve(fileName);
+        if (!Files.exists(path) || Files.size(path) != entry.headerLength + contentLength
+                || !keyword.equals(FileDirectory.readKeyword(path))) {
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void publishFile(FileEntry entry) {
+        if (entry.modifiedMillis < 0) {
+            // a file written by this node, such as a finished download, is complete by now
+            try {
+                entry.stamp(Files.readAttributes(this.root.resolve(entry.fileName), BasicFileAttributes.class));
+            } catch (IOException ignored) {
+                // left unknown, so the next refresh re-reads it
+            }
+        }
+        FileEntry previous = this.fileNameMap.put(entry.fileName, entry);
+        if (previous != null) {
+            this.unindex(previous);
+        }
+        for (String term : FileDirectory.termsOf(entry.keyword)) {
+            this.keywordIndex.add(term, entry);
+        }
+        this.fileNameIndex.add(entry.fileName.toLowerCase(Locale.ROOT), entry);
+        this.indexContentHash(entry);
+    }
+
+    /**
+     * Publishes a file whose content hash is already known, e.g. because every chunk was verified
+     * while downloading it.
+     */
+    public void publishFile(FileEntry entry, ContentHash contentHash) {
+        entry.contentHash = contentHash;
+        this.publishFile(entry);
+    }
+
+    /**
+     * @return a shared file with exactly this content, or null
+     */
+    public FileEntry searchByContentHash(byte[] root) {
+        return this.contentHashMap.get(ContentHash.toHex(root));
+    }
+
+    /**
+     * @return the entry's content hash, computing it now if the background hashers have not yet
+     */
+    public ContentHash contentHashOf(FileEntry entry) throws IOException {
+        ContentHash contentHash = entry.contentHash;
+        if (contentHash == null) {
+            contentHash = this.computeContentHash(entry);
+        }
+        return contentHash;
+    }
+
+    private void indexContentHash(FileEntry entry) {
+        ContentHash contentHash = entry.contentHash;
+        if (contentHash != null) {
+            this.contentHashMap.put(contentHash.toHex(), entry);
+            return;
+        }
+        this.hashExecutor.execute(() -> {
+            try {
+                this.computeContentHash(entry);
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.WARN, "could not hash " + entry.fileName + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private ContentHash computeContentHash(FileEntry entry) throws IOException {
+        ContentHash contentHash;
+        try (FileChannel channel = this.openFileChannel(entry.fileName)) {
+            contentHash = ContentHash.compute(channel, entry.headerLength, entry.contentLength, Constants.TRANSFER_CHUNK_SIZE);
+        }
+        synchronized (this) {
+            // the file may have been replaced or removed while it was being read
+            if (entry.contentHash == null && this.fileNameMap.get(entry.fileName) == entry) {
+                entry.contentHash = contentHash;
+                this.contentHashMap.put(contentHash.toHex(), entry);
+            }
+        }
+        return contentHash;
+    }
+
+    public synchronized void removeFile(String fileName) {
+        FileEntry previous = this.fileNameMap.remove(fileName);
+        if (previous != null) {
+            this.unindex(previous);
+        }
+    }
+
+    /**
+     * Re-reads a file whose size or modification time changed on disk, or drops it if it is gone
+     * or still being downloaded. A re-read file is hashed again. A change to a progress file
+     * refreshes the file it tracks.
+     */
+    public void refreshFile(String fileName) throws IOException {
+        if (fileName.endsWith(PROGRESS_SUFFIX)) {
+            fileName = fileName.substring(0, fileName.length() - PROGRESS_SUFFIX.length());
+        }
+        if (!Files.isRegularFile(this.root.resolve(fileName)) || Files.exists(this.progressPath(fileName))) {
+            this.removeFile(fileName);
+            return;
+        }
+        FileEntry current = this.fileNameMap.get(fileName);
+        if (current == null || !current.isCurrent(this.root.resolve(fileName))) {
+            this.publishFile(this.readEntry(fileName));
+        }
+    }
+
+    /**
+     * Scans the whole directory again and reconciles the index with it, for when individual
+     * change events were lost.
+     */
+    public void rescan() throws IOException {
+        List<FileEntry> entries = this.scan();
+        synchronized (this) {
+            Set<String> fileNames = new HashSet<>();
+            for (FileEntry entry : entries) {
+                fileNames.add(entry.fileName);
+                FileEntry current = this.fileNameMap.get(entry.fileName);
+                if (current == null || !current.hasStamp(entry.fileSize, entry.modifiedMillis)) {
+                    this.publishFile(entry);
+                }
+            }
+            for (String fileName : new ArrayList<>(this.fileNameMap.keySet())) {
+                if (!fileNames.contains(fileName)) {
+                    this.removeFile(fileName);
+                }
+            }
+        }
+    }
+
+    public Path getRoot() {return this.root;}
+
+    private void unindex(FileEntry entry) {
+        for (String term : FileDirectory.termsOf(entry.keyword)) {
+            this.keywordIndex.remove(term, entry);
+        }
+        this.fileNameIndex.remove(entry.fileName.toLowerCase(Locale.ROOT), entry);
+        ContentHash contentHash = entry.contentHash;
+        if (contentHash != null) {
+            this.contentHashMap.remove(contentHash.toHex(), entry);
+        }
     }
 
-    public OutputStream newFileOutput(String fileName) throws IOException {
-        OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.root.resolve(fileName), StandardOpenOption.APPEND));
-        return out;
+    public Path progressPath(String fileName) {
+        return this.root.resolve(fileName + PROGRESS_SUFFIX);
+    }
+
+    public FileChannel newFileChannel(String fileName) throws IOException {
+        return FileChannel.open(this.root.resolve(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
 
     public InputStream newFileInput(String fileName) throws IOException {
-        InputStream in = new BufferedInputStream(Files.newInputStream(this.root.resolve(fileName), StandardOpenOption.READ));
-        while (true) {
-            if (in.read() == '\n') break;
+        FileChannel channel = this.openFileChannel(fileName);
+        FileEntry entry = this.fileNameMap.get(fileName);
+        if (entry != null) {
+            channel.position(entry.headerLength);
+        }
+        return new BufferedInputStream(Channels.newInputStream(channel));
+    }
+
+    public FileChannel openFileChannel(String fileName) throws IOException {
+        return FileChannel.open(this.root.resolve(fileName), StandardOpenOption.READ);
+    }
+
+    private static String readKeyword(Path path) throws IOException {
+        // decode only the header line so binary content after it is never touched
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 256)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                header.write(b);
+            }
+            return header.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Maps terms to the files carrying them. A second sorted map over every suffix of every term
+     * turns substring matches into prefix scans. Writers hold the directory lock; readers do not lock.
+     */
+    private static class TermIndex {
+        private final ConcurrentNavigableMap<String, Set<FileEntry>> terms;
+        private final ConcurrentNavigableMap<String, Set<String>> suffixes;
+
+        TermIndex(Map<String, Set<FileEntry>> initialTerms) {
+            Map<String, Set<String>> initialSuffixes = new HashMap<>();
+            for (String term : initialTerms.keySet()) {
+                for (int i = 0; i < term.length(); i++) {
+                    initialSuffixes.computeIfAbsent(term.substring(i), (String suffix) -> ConcurrentHashMap.newKeySet()).add(term);
+                }
+            }
+            // skip lists built from sorted maps are linked in one pass
+            this.terms = new ConcurrentSkipListMap<>(new TreeMap<>(initialTerms));
+            this.suffixes = new ConcurrentSkipListMap<>(new TreeMap<>(initialSuffixes));
+        }
+
+        void add(String term, FileEntry entry) {
+            Set<FileEntry> entries = this.terms.get(term);
+            if (entries == null) {
+                entries = ConcurrentHashMap.newKeySet();
+                entries.add(entry);
+                this.terms.put(term, entries);
+                for (int i = 0; i < term.length(); i++) {
+                    this.suffixes.computeIfAbsent(term.substring(i), (String suffix) -> ConcurrentHashMap.newKeySet()).add(term);
+                }
+            } else {
+                entries.add(entry);
+            }
         }
-        return in;
+
+        void remove(String term, FileEntry entry) {
+            Set<FileEntry> entries = this.terms.get(term);
+            if (entries == null || !entries.remove(entry) || !entries.isEmpty()) {
+                return;
+            }
+            this.terms.remove(term);
+            for (int i = 0; i < term.length(); i++) {
+                String suffix = term.substring(i);
+                Set<String> suffixTerms = this.suffixes.get(suffix);
+                if (suffixTerms != null) {
+                    suffixTerms.remove(term);
+                    if (suffixTerms.isEmpty()) {
+                        this.suffixes.remove(suffix);
+                    }
+                }
+            }
+        }
+
+        Set<FileEntry> match(String pattern) {
+            Set<FileEntry> matches = new LinkedHashSet<>();
+            boolean leading = pattern.charAt(0) == WILDCARD;
+            boolean trailing = pattern.length() > 1 && pattern.charAt(pattern.length() - 1) == WILDCARD;
+            String text = pattern.substring(leading ? 1 : 0, pattern.length() - (trailing ? 1 : 0));
+            if (text.isEmpty() || text.indexOf(WILDCARD) >= 0) {
+                return matches;
+            }
+            if (leading) {
+                // *text* is a prefix scan over suffixes; *text is an exact suffix lookup
+                Collection<Set<String>> suffixTerms = trailing
+                        ? TermIndex.withPrefix(this.suffixes, text).values()
+                        : TermIndex.exactly(this.suffixes, text);
+                for (Set<String> terms : suffixTerms) {
+                    for (String term : terms) {
+                        TermIndex.addAll(matches, this.terms.get(term));
+                    }
+                }
+            } else if (trailing) {
+                for (Set<FileEntry> entries : TermIndex.withPrefix(this.terms, text).values()) {
+                    matches.addAll(entries);
+                }
+            } else {
+                TermIndex.addAll(matches, this.terms.get(text));
+            }
+            return matches;
+        }
+
+        private static <V> NavigableMap<String, V> withPrefix(ConcurrentNavigableMap<String, V> map, String prefix) {
+            return map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        }
+
+        private static <V> Collection<V> exactly(ConcurrentNavigableMap<String, V> map, String key) {
+            List<V> values = new ArrayList<>();
+            V value = map.get(key);
+            if (value != null) {
+                values.add(value);
+            }
+            return values;
+        }
+
+        private static void addAll(Set<FileEntry> matches, Set<FileEntry> entries) {
+            if (entries != null) {
+                matches.addAll(entries);
+            }
+        }
+    }
+
+    private static long headerLengthOf(String keyword) {
+        return keyword.getBytes(StandardCharsets.UTF_8).length + 1;
     }
 }
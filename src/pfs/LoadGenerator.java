@@ -0,0 +1,237 @@
+package pfs;
+
+import pfs.messages.DiscoveryReplyMessage;
+import pfs.tasks.Node;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a trace of searches against a running node at a fixed rate and concurrency,
+ * then prints throughput, success rate, hop-count distribution, latency percentiles and link batching.
+ * <p>
+ * Trace lines are {@code kw <keyword>} or {@code fn <filename>}; blank lines and lines
+ * starting with {@code #} are skipped.
+ */
+public class LoadGenerator {
+    public static class Options {
+        public Path traceFile;
+        public double rate; // searches per second, 0 for as fast as concurrency allows
+        public int concurrency = 16;
+        public int repeat = 1;
+        public boolean download;
+    }
+
+    private static class TraceEntry {
+        private final boolean isKeywordSearch;
+        private final String filter;
+
+        private TraceEntry(boolean isKeywordSearch, String filter) {
+            this.isKeywordSearch = isKeywordSearch;
+            this.filter = filter;
+        }
+    }
+
+    private final Node node;
+    private final Options options;
+
+    private final AtomicInteger successes;
+    private final AtomicInteger failures;
+    private final Map<Integer, AtomicInteger> hopCounts;
+    private final List<Long> firstReplyMillis;
+    private final List<Long> completionMillis;
+    private final AtomicInteger downloadsCompleted;
+    private final AtomicInteger downloadsFailed;
+    private final AtomicLong bytesDownloaded;
+    private final Set<String> activeDownloads;
+
+    public LoadGenerator(Node node, Options options) {
+        this.node = node;
+        this.options = options;
+        this.successes = new AtomicInteger();
+        this.failures = new AtomicInteger();
+        this.hopCounts = new ConcurrentHashMap<>();
+        this.firstReplyMillis = new ArrayList<>();
+        this.completionMillis = new ArrayList<>();
+        this.downloadsCompleted = new AtomicInteger();
+        this.downloadsFailed = new AtomicInteger();
+        this.bytesDownloaded = new AtomicLong();
+        this.activeDownloads = ConcurrentHashMap.newKeySet();
+    }
+
+    public static Options parseOptions(String[] args, int offset) {
+        Options options = new Options();
+        for (int i = offset; i < args.length; i++) {
+            switch (args[i]) {
+                case "--replay":
+                    options.traceFile = Path.of(args[++i]);
+                    break;
+                case "--rate":
+                    options.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--concurrency":
+                    options.concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--repeat":
+                    options.repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--download":
+                    options.download = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if (options.traceFile == null) {
+            throw new IllegalArgumentException("--replay <tracefile> is required");
+        }
+        return options;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        List<TraceEntry> trace = LoadGenerator.readTrace(this.options.traceFile);
+        Semaphore inFlight = new Semaphore(this.options.concurrency);
+        ExecutorService downloadExecutor = Executors.newFixedThreadPool(this.options.concurrency);
+        long intervalNanos = this.options.rate > 0 ? (long) (1_000_000_000L / this.options.rate) : 0;
+
+        int issued = 0;
+        long startNanos = System.nanoTime();
+        for (int round = 0; round < this.options.repeat; round++) {
+            for (TraceEntry entry : trace) {
+                // pace against the schedule rather than the previous send so slow sends do not lower the rate
+                long delayNanos = startNanos + issued * intervalNanos - System.nanoTime();
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+                inFlight.acquire();
+                issued++;
+                long issueNanos = System.nanoTime();
+                long issueMillis = System.currentTimeMillis();
+                this.node.queryFileAsync(entry.isKeywordSearch, entry.filter).whenComplete((Node.SearchResult result, Throwable error) -> {
+                    // release only once recorded, so the final acquire below waits for every download to be queued
+                    try {
+                        this.recordResult(result, error, issueNanos, issueMillis, downloadExecutor);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        inFlight.acquire(this.options.concurrency);
+        downloadExecutor.shutdown();
+        downloadExecutor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        this.printReport(issued, elapsedNanos);
+    }
+
+    private void recordResult(Node.SearchResult result, Throwable error, long issueNanos, long issueMillis, ExecutorService downloadExecutor) {
+        long completion = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - issueNanos);
+        if (error != null || result == null) {
+            this.failures.incrementAndGet();
+            return;
+        }
+        this.successes.incrementAndGet();
+        this.hopCounts.computeIfAbsent(result.getHopCount(), (Integer hopCount) -> new AtomicInteger()).incrementAndGet();
+        long firstReply = Long.MAX_VALUE;
+        for (Node.TimestampedReplyMessage message : result.getMessages()) {
+            firstReply = Math.min(firstReply, message.getArrivalTime().toEpochMilli() - issueMillis);
+        }
+        synchronized (this) {
+            this.firstReplyMillis.add(firstReply);
+            this.completionMillis.add(completion);
+        }
+
+        if (this.options.download) {
+            downloadExecutor.execute(() -> this.download(result));
+        }
+    }
+
+    private void download(Node.SearchResult result) {
+        DiscoveryReplyMessage.Match match = result.getMessages().get(0).getMatch();
+        String fileName = match.fileName;
+        // never overwrite a file this node already serves, and never download the same file twice at once
+        if (this.node.getLocalFile(fileName) != null || !this.activeDownloads.add(fileName)) {
+            return;
+        }
+        try {
+            this.node.transferFile(Node.sameContent(result.getMessages(), result.getMessages().get(0)));
+            this.downloadsCompleted.incrementAndGet();
+            this.bytesDownloaded.addAndGet(this.node.getLocalFile(fileName).contentLength);
+        } catch (IOException e) {
+            this.downloadsFailed.incrementAndGet();
+        } finally {
+            this.activeDownloads.remove(fileName);
+        }
+    }
+
+    private synchronized void printReport(int issued, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        StringBuilder sb = new StringBuilder("LOAD REPORT\n");
+        sb.append(String.format("searches: %d in %.2f s (%.1f/s)\n", issued, elapsedSeconds, issued / elapsedSeconds));
+        sb.append(String.format("success: %d (%.1f%%), fail: %d\n",
+                this.successes.get(), issued == 0 ? 0.0 : 100.0 * this.successes.get() / issued, this.failures.get()));
+        sb.append("hop counts:");
+        for (Map.Entry<Integer, AtomicInteger> entry : new TreeMap<>(this.hopCounts).entrySet()) {
+            sb.append(String.format(" %d=%d", entry.getKey(), entry.getValue().get()));
+        }
+        sb.append('\n');
+        sb.append("first reply ms: ").append(LoadGenerator.formatPercentiles(this.firstReplyMillis)).append('\n');
+        sb.append("completion ms: ").append(LoadGenerator.formatPercentiles(this.completionMillis)).append('\n');
+        sb.append("links: ").append(this.node.getLinkStatistics()).append('\n');
+        if (this.options.download) {
+            sb.append(String.format("downloads: %d ok, %d failed, %d bytes (%.1f KB/s)\n",
+                    this.downloadsCompleted.get(), this.downloadsFailed.get(), this.bytesDownloaded.get(),
+                    this.bytesDownloaded.get() / 1024.0 / elapsedSeconds));
+        }
+        System.out.print(sb);
+    }
+
+    static String formatPercentiles(List<Long> samples) {
+        if (samples.isEmpty()) {
+            return "n/a";
+        }
+        long[] sorted = new long[samples.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        return String.format("p50=%d p90=%d p99=%d max=%d",
+                LoadGenerator.percentile(sorted, 0.50), LoadGenerator.percentile(sorted, 0.90),
+                LoadGenerator.percentile(sorted, 0.99), sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static List<TraceEntry> readTrace(Path traceFile) throws IOException {
+        List<TraceEntry> trace = new ArrayList<>();
+        for (String line : Files.readAllLines(traceFile)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length != 2 || !(parts[0].equals("kw") || parts[0].equals("fn"))) {
+                throw new IOException("bad trace line: " + line);
+            }
+            trace.add(new TraceEntry(parts[0].equals("kw"), parts[1]));
+        }
+        return trace;
+    }
+}
@@ -1,26 +1,40 @@
 package pfs;
 
-import pfs.messages.DiscoveryReplyMessage;
 import pfs.tasks.Node;
 import pfs.tasks.TrackerServer;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.Scanner;
 
 public class Main {
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 0 && args.length != 2) {
+        if (args.length > 0 && args[0].equals("--simulate")) {
+            new Simulator(Simulator.parseOptions(args, 1)).run();
+            return;
+        }
+        if (args.length == 1) {
             System.err.println("Usage: java pfs.Main (for tracker)");
             System.err.println("Usage: java pfs.Main <directory> <trackername> (for node)");
+            System.err.println("Usage: java pfs.Main <directory> <trackername> --replay <tracefile> "
+                    + "[--rate <searches/s>] [--concurrency <n>] [--repeat <n>] [--download] (for load generation)");
+            System.err.println("Usage: java pfs.Main --simulate [--nodes <n>] [--seed <n>] [--latency <min,max ms>] [--churn <departures/s>] "
+                    + "[--rate <searches/s>] [--duration <s>] ... (for simulation)");
             System.exit(1);
         }
 
         if (args.length == 0) {
             TrackerServer trackerServer = new TrackerServer();
             trackerServer.run();
-        } else if (args.length == 2) {
+        } else if (args.length > 2) {
+            LoadGenerator.Options options = LoadGenerator.parseOptions(args, 2);
+            Node node = new Node(args[0], args[1]);
+            node.start();
+            new LoadGenerator(node, options).run();
+            node.stop();
+        } else {
             Node node = new Node(args[0], args[1]);
             node.start();
 
@@ -53,13 +67,13 @@ public class Main {
                 Instant startTime = null;
                 switch (choice) {
                     case 1:
-                        System.out.println("enter keyword:");
+                        System.out.println("enter keyword (term*, *term* for prefix or substring, commas to require several):");
                         String keyword = sc.next();
                         startTime = Instant.now();
                         result = node.queryFileByKeyword(keyword);
                         break;
                     case 2:
-                        System.out.println("enter filename:");
+                        System.out.println("enter filename (name*, *name* for prefix or substring):");
                         String fileName = sc.next();
                         startTime = Instant.now();
                         result = node.queryFileByFileName(fileName);
@@ -80,29 +94,38 @@ public class Main {
                     int i = 1;
                     for (Node.TimestampedReplyMessage message : result.getMessages()) {
                         long elapsedMillis = Duration.between(startTime, message.getArrivalTime()).toMillis();
-                        sb.append(String.format("%d) [%d ms]: %s\n", i, elapsedMillis, message.getReplyMessage().terminator.getCanonicalHostName()));
+                        sb.append(String.format("%d) [%d ms]: %s %s\n", i, elapsedMillis,
+                                EventLog.hostName(message.getReplyMessage().terminator), message.getMatch().fileName));
                         i++;
                     }
                     System.out.println(sb);
 
-                    System.out.println("Enter choice:");
+                    System.out.format("Enter choice (0 to download from all %d sources):\n", result.getMessages().size());
                     int transferChoice;
                     while (true) {
                         token = sc.next();
                         try {
                             transferChoice = Integer.parseInt(token) - 1;
-                            if (transferChoice >= 0 && transferChoice < result.getMessages().size()) {
+                            if (transferChoice >= -1 && transferChoice < result.getMessages().size()) {
                                 break;
                             } else {
-                                System.out.format("number must be between 1 and %d: please reenter\n", result.getMessages().size());
+                                System.out.format("number must be between 0 and %d: please reenter\n", result.getMessages().size());
                             }
                         } catch (NumberFormatException e) {
                             System.out.println("invalid number: please reenter");
                         }
                     }
 
-                    DiscoveryReplyMessage replyMessage = result.getMessages().get(transferChoice).getReplyMessage();
-                    node.transferFile(replyMessage.terminator, replyMessage.fileName, replyMessage.keyword);
+                    try {
+                        if (transferChoice == -1) {
+                            // only peers holding the same content can share the download
+                            node.transferFile(Node.sameContent(result.getMessages(), result.getMessages().get(0)));
+                        } else {
+                            node.transferFile(Collections.singletonList(result.getMessages().get(transferChoice)));
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Download failed, select the file again to resume: " + e.getMessage());
+                    }
                 }
             }
         }
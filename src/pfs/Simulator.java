@@ -0,0 +1,413 @@
+package pfs;
+
+import pfs.tasks.InMemoryNetwork;
+import pfs.tasks.LinkStatistics;
+import pfs.tasks.Node;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Runs a whole network of nodes in one JVM on an {@link InMemoryNetwork} and reports how well
+ * searches do: success rate, hop counts, messages per search and latency, all in virtual time.
+ * <p>
+ * Every node shares files drawn from a catalog with Zipf popularity, so popular files have many
+ * replicas, and searches ask for catalog keywords with the same popularity. Nodes join during
+ * the first half of the warm-up; searches, and churn if enabled, run for the measured duration.
+ * Each churn event makes a random node leave, crashing it or stopping it cleanly, and a new node
+ * join in its place. The same options and seed always give the same report.
+ */
+public class Simulator {
+    // the longest expanding-ring search: rounds of 250 ms per hop, for 1, 2, 4, 8 and 16 hops
+    private static final long SEARCH_DRAIN_MILLIS = 10_000;
+
+    public static class Options {
+        public int nodes = 1000;
+        public long seed = 1;
+        public long minLatencyMillis = 5;
+        public long maxLatencyMillis = 100;
+        public int filesPerNode = 20;
+        public int catalogSize = 10_000;
+        public double zipfExponent = 1.0;
+        public long warmupSeconds = 60;
+        public long durationSeconds = 120;
+        public double rate = 20; // searches per virtual second
+        public double churn; // departures per virtual second
+        public double crashFraction = 0.5;
+    }
+
+    private static class SimulatedNode {
+        private final Node node;
+        private final InetAddress address;
+        private final int[] items;
+
+        private SimulatedNode(Node node, InetAddress address, int[] items) {
+            this.node = node;
+            this.address = address;
+            this.items = items;
+        }
+
+        private boolean holds(int item) {
+            for (int held : this.items) {
+                if (held == item) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Options options;
+    private final InMemoryNetwork network;
+    private final Random random;
+    private final double[] popularity; // cumulative
+    private final int[] replicas; // per catalog item, over the nodes that are up
+    private final Path root;
+    private final List<SimulatedNode> allNodes;
+    private final List<SimulatedNode> liveNodes;
+    private int nextAddress;
+
+    private int issued;
+    private int answerable;
+    private int successes;
+    private int answerableSuccesses;
+    private final Map<Integer, Integer> hopCounts;
+    private final List<Long> firstReplyMillis;
+    private final List<Long> completionMillis;
+    private int departures;
+    private int crashes;
+
+    public Simulator(Options options) throws IOException {
+        this.options = options;
+        this.network = new InMemoryNetwork(options.seed, options.minLatencyMillis, options.maxLatencyMillis);
+        this.random = new Random(options.seed);
+        this.popularity = new double[options.catalogSize];
+        double total = 0;
+        for (int i = 0; i < options.catalogSize; i++) {
+            total += 1 / Math.pow(i + 1, options.zipfExponent);
+            this.popularity[i] = total;
+        }
+        for (int i = 0; i < options.catalogSize; i++) {
+            this.popularity[i] /= total;
+        }
+        this.replicas = new int[options.catalogSize];
+        this.root = Files.createTempDirectory("pfs-simulation");
+        this.allNodes = new ArrayList<>();
+        this.liveNodes = new ArrayList<>();
+        this.hopCounts = new TreeMap<>();
+        this.firstReplyMillis = new ArrayList<>();
+        this.completionMillis = new ArrayList<>();
+    }
+
+    public static Options parseOptions(String[] args, int offset) {
+        Options options = new Options();
+        for (int i = offset; i < args.length; i++) {
+            switch (args[i]) {
+                case "--nodes":
+                    options.nodes = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    options.seed = Long.parseLong(args[++i]);
+                    break;
+                case "--latency":
+                    String[] bounds = args[++i].split(",");
+                    options.minLatencyMillis = Long.parseLong(bounds[0]);
+                    options.maxLatencyMillis = Long.parseLong(bounds[bounds.length - 1]);
+                    break;
+                case "--files":
+                    options.filesPerNode = Integer.parseInt(args[++i]);
+                    break;
+                case "--catalog":
+                    options.catalogSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--zipf":
+                    options.zipfExponent = Double.parseDouble(args[++i]);
+                    break;
+                case "--warmup":
+                    options.warmupSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--rate":
+                    options.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--churn":
+                    options.churn = Double.parseDouble(args[++i]);
+                    break;
+                case "--crash":
+                    options.crashFraction = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        if (options.nodes < 1 || options.catalogSize < options.filesPerNode || options.rate <= 0) {
+            throw new IllegalArgumentException("need at least one node, a catalog larger than --files, and a positive --rate");
+        }
+        return options;
+    }
+
+    public void run() throws IOException {
+        long startNanos = System.nanoTime();
+        long warmupMillis = options.warmupSeconds * 1000;
+        long endMillis = warmupMillis + options.durationSeconds * 1000;
+        try {
+            for (int i = 0; i < this.options.nodes; i++) {
+                SimulatedNode node = this.createNode();
+                this.network.schedule(() -> this.startNode(node), i * warmupMillis / 2 / this.options.nodes);
+            }
+            this.network.runUntil(warmupMillis);
+
+            long queriesBefore = this.network.getQueriesSent();
+            long repliesBefore = this.network.getRepliesSent();
+            long controlBefore = this.network.getControlSent();
+            this.scheduleSearch(endMillis);
+            if (this.options.churn > 0) {
+                this.scheduleChurn(endMillis);
+            }
+            this.network.runUntil(endMillis + SEARCH_DRAIN_MILLIS);
+
+            this.printReport(this.network.getQueriesSent() - queriesBefore, this.network.getRepliesSent() - repliesBefore,
+                    this.network.getControlSent() - controlBefore, (System.nanoTime() - startNanos) / 1e9);
+        } finally {
+            this.deleteRoot();
+        }
+    }
+
+    private SimulatedNode createNode() throws IOException {
+        int addressValue = ++this.nextAddress;
+        InetAddress address = InetAddress.getByAddress(new byte[]{10, (byte) (addressValue >>> 16), (byte) (addressValue >>> 8), (byte) addressValue});
+        Path directory = Files.createDirectory(this.root.resolve("n" + addressValue));
+        FileDirectory fileDirectory = new FileDirectory(directory.toString());
+        Set<Integer> items = new HashSet<>();
+        int[] held = new int[this.options.filesPerNode];
+        for (int i = 0; i < held.length; i++) {
+            int item;
+            do {
+                item = this.drawItem();
+            } while (!items.add(item));
+            held[i] = item;
+            fileDirectory.publishFile(new FileDirectory.FileEntry("file" + item + ".dat", "item" + item, 1024), Simulator.contentHashOf(item));
+        }
+        SimulatedNode node = new SimulatedNode(this.network.addNode(address, fileDirectory), address, held);
+        this.allNodes.add(node);
+        return node;
+    }
+
+    private static ContentHash contentHashOf(int item) {
+        byte[] chunkHash = new byte[ContentHash.HASH_LENGTH];
+        for (int i = 0; i < 4; i++) {
+            chunkHash[i] = (byte) (item >>> (8 * i));
+        }
+        return new ContentHash(Constants.TRANSFER_CHUNK_SIZE, new byte[][]{chunkHash});
+    }
+
+    private int drawItem() {
+        int index = java.util.Arrays.binarySearch(this.popularity, this.random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, this.popularity.length - 1);
+    }
+
+    private void startNode(SimulatedNode node) {
+        node.node.start();
+        this.liveNodes.add(node);
+        for (int item : node.items) {
+            this.replicas[item]++;
+        }
+    }
+
+    private long nextGapMillis(double ratePerSecond) {
+        // exponential gaps give Poisson arrivals
+        return Math.round(-Math.log(1 - this.random.nextDouble()) * 1000 / ratePerSecond);
+    }
+
+    private void scheduleSearch(long endMillis) {
+        long delayMillis = this.nextGapMillis(this.options.rate);
+        if (this.network.currentTimeMillis() + delayMillis >= endMillis) {
+            return;
+        }
+        this.network.schedule(() -> {
+            this.search();
+            this.scheduleSearch(endMillis);
+        }, delayMillis);
+    }
+
+    private void search() {
+        if (this.liveNodes.isEmpty()) {
+            return;
+        }
+        SimulatedNode initiator = this.liveNodes.get(this.random.nextInt(this.liveNodes.size()));
+        int item;
+        do {
+            // a node never searches for what it already shares
+            item = this.drawItem();
+        } while (initiator.holds(item));
+        boolean canSucceed = this.replicas[item] > 0;
+        this.issued++;
+        if (canSucceed) {
+            this.answerable++;
+        }
+        long issueMillis = this.network.currentTimeMillis();
+        long[] firstReply = {-1};
+        initiator.node.queryFileAsync(true, "item" + item, (Node.TimestampedReplyMessage reply) -> {
+            if (firstReply[0] < 0) {
+                firstReply[0] = this.network.currentTimeMillis() - issueMillis;
+            }
+        }).whenComplete((Node.SearchResult result, Throwable error) -> {
+            if (error != null || result == null) {
+                return;
+            }
+            this.successes++;
+            if (canSucceed) {
+                this.answerableSuccesses++;
+            }
+            this.hopCounts.merge(result.getHopCount(), 1, Integer::sum);
+            this.firstReplyMillis.add(firstReply[0]);
+            this.completionMillis.add(this.network.currentTimeMillis() - issueMillis);
+        });
+    }
+
+    private void scheduleChurn(long endMillis) {
+        long delayMillis = this.nextGapMillis(this.options.churn);
+        if (this.network.currentTimeMillis() + delayMillis >= endMillis) {
+            return;
+        }
+        this.network.schedule(() -> {
+            this.replaceNode();
+            this.scheduleChurn(endMillis);
+        }, delayMillis);
+    }
+
+    private void replaceNode() {
+        if (!this.liveNodes.isEmpty()) {
+            int index = this.random.nextInt(this.liveNodes.size());
+            SimulatedNode leaving = this.liveNodes.get(index);
+            this.liveNodes.set(index, this.liveNodes.get(this.liveNodes.size() - 1));
+            this.liveNodes.remove(this.liveNodes.size() - 1);
+            for (int item : leaving.items) {
+                this.replicas[item]--;
+            }
+            this.departures++;
+            if (this.random.nextDouble() < this.options.crashFraction) {
+                this.crashes++;
+                this.network.crash(leaving.address);
+            } else {
+                try {
+                    leaving.node.stop();
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException("in-memory nodes stop without I/O", e);
+                }
+            }
+        }
+        try {
+            this.startNode(this.createNode());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void printReport(long queries, long replies, long control, double wallSeconds) {
+        StringBuilder sb = new StringBuilder("SIMULATION REPORT\n");
+        sb.append(String.format("network: %d nodes, seed %d, latency %d-%d ms, %d files each from %d (zipf %.2f)\n",
+                this.options.nodes, this.options.seed, this.options.minLatencyMillis, this.options.maxLatencyMillis,
+                this.options.filesPerNode, this.options.catalogSize, this.options.zipfExponent));
+        sb.append(String.format("churn: %d departures (%d crashes) in %d s\n", this.departures, this.crashes, this.options.durationSeconds));
+        sb.append(String.format("searches: %d in %d s, %d with a live replica\n", this.issued, this.options.durationSeconds, this.answerable));
+        sb.append(String.format("success: %d (%.1f%%), of those with a live replica %d (%.1f%%)\n",
+                this.successes, this.issued == 0 ? 0.0 : 100.0 * this.successes / this.issued,
+                this.answerableSuccesses, this.answerable == 0 ? 0.0 : 100.0 * this.answerableSuccesses / this.answerable));
+        sb.append("hop counts:");
+        for (Map.Entry<Integer, Integer> entry : this.hopCounts.entrySet()) {
+            sb.append(String.format(" %d=%d", entry.getKey(), entry.getValue()));
+        }
+        sb.append('\n');
+        sb.append("first reply ms: ").append(LoadGenerator.formatPercentiles(this.firstReplyMillis)).append('\n');
+        sb.append("completion ms: ").append(LoadGenerator.formatPercentiles(this.completionMillis)).append('\n');
+        sb.append(String.format("messages: %d queries and %d replies (%.1f per search), %d control\n",
+                queries, replies, this.issued == 0 ? 0.0 : (double) (queries + replies) / this.issued, control));
+        long droppedExpired = 0;
+        long droppedOverflow = 0;
+        for (SimulatedNode node : this.allNodes) {
+            LinkStatistics statistics = node.node.getLinkStatistics();
+            droppedExpired += statistics.getDroppedExpired();
+            droppedOverflow += statistics.getDroppedOverflow();
+        }
+        sb.append(String.format("dropped: %d expired, %d overflow\n", droppedExpired, droppedOverflow));
+        sb.append(this.formatOverlay()).append('\n');
+        sb.append(String.format("wall time: %.1f s\n", wallSeconds));
+        System.out.print(sb);
+    }
+
+    /**
+     * @return the degree range of the live nodes and the share of them in the largest connected part
+     */
+    private String formatOverlay() {
+        Map<InetAddress, Set<InetAddress>> adjacency = new HashMap<>();
+        for (SimulatedNode node : this.liveNodes) {
+            adjacency.put(node.address, new HashSet<>());
+        }
+        int minDegree = Integer.MAX_VALUE;
+        int maxDegree = 0;
+        long degreeSum = 0;
+        for (SimulatedNode node : this.liveNodes) {
+            List<InetAddress> neighbors = node.node.getNeighbors();
+            minDegree = Math.min(minDegree, neighbors.size());
+            maxDegree = Math.max(maxDegree, neighbors.size());
+            degreeSum += neighbors.size();
+            for (InetAddress neighbor : neighbors) {
+                if (adjacency.containsKey(neighbor)) {
+                    adjacency.get(node.address).add(neighbor);
+                    adjacency.get(neighbor).add(node.address);
+                }
+            }
+        }
+        Set<InetAddress> visited = new HashSet<>();
+        int largest = 0;
+        for (InetAddress start : adjacency.keySet()) {
+            if (!visited.add(start)) {
+                continue;
+            }
+            int size = 0;
+            Queue<InetAddress> pending = new ArrayDeque<>();
+            pending.add(start);
+            while (!pending.isEmpty()) {
+                size++;
+                for (InetAddress next : adjacency.get(pending.poll())) {
+                    if (visited.add(next)) {
+                        pending.add(next);
+                    }
+                }
+            }
+            largest = Math.max(largest, size);
+        }
+        int live = this.liveNodes.size();
+        return String.format("overlay: degree min=%d mean=%.1f max=%d, largest component %d of %d nodes",
+                live == 0 ? 0 : minDegree, live == 0 ? 0.0 : (double) degreeSum / live, maxDegree, largest, live);
+    }
+
+    private void deleteRoot() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.root)) {
+            List<Path> sorted = new ArrayList<>();
+            paths.forEach(sorted::add);
+            sorted.sort(Comparator.reverseOrder());
+            for (Path path : sorted) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
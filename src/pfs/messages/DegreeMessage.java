@@ -0,0 +1,36 @@
+package pfs.messages;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Link-level advert of how many neighbors the sender has, never forwarded past the neighbor.
+ * A node hands its dropped neighbors off to a neighbor that advertised room for another link.
+ */
+public class DegreeMessage implements Message {
+    public final int degree;
+
+    public DegreeMessage(int degree) {
+        this.degree = degree;
+    }
+
+    @Override
+    public void writeData(DataOutputStream out) throws IOException {
+        out.writeInt(degree);
+    }
+
+    static DegreeMessage readData(DataInputStream in) throws IOException {
+        return new DegreeMessage(in.readInt());
+    }
+
+    @Override
+    public void encode(ByteBuffer out) {
+        MessageCodec.writeVarInt(out, degree);
+    }
+
+    static DegreeMessage decode(ByteBuffer in) throws IOException {
+        return new DegreeMessage(MessageCodec.readVarInt(in));
+    }
+}
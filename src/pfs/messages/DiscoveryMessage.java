@@ -4,11 +4,25 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public abstract class DiscoveryMessage implements Message {
-    public InetAddress initiator;
-    public int sequenceId;
-    public long expiration; // specified in epoch milliseconds
+    public final InetAddress initiator;
+    public final int sequenceId;
+    public final long expiration; // specified in epoch milliseconds
+
+    protected DiscoveryMessage(InetAddress initiator, int sequenceId, long expiration) {
+        this.initiator = initiator;
+        this.sequenceId = sequenceId;
+        this.expiration = expiration;
+    }
+
+    /**
+     * Copies the header of {@code header}, for messages that answer or forward it.
+     */
+    protected DiscoveryMessage(DiscoveryMessage header) {
+        this(header.initiator, header.sequenceId, header.expiration);
+    }
 
     @Override
     public void writeData(DataOutputStream out) throws IOException {
@@ -18,10 +32,26 @@ public abstract class DiscoveryMessage implements Message {
     }
 
     @Override
-    public void readData(DataInputStream in) throws IOException {
-        this.initiator = InetAddress.getByAddress(Message.readBytes(in));
-        this.sequenceId = in.readInt();
-        this.expiration = in.readLong();
+    public void encode(ByteBuffer out) {
+        MessageCodec.writeAddress(out, initiator);
+        MessageCodec.writeVarInt(out, sequenceId);
+        MessageCodec.writeVarLong(out, expiration);
     }
-}
 
+    /**
+     * The decoded header fields, handed to the constructor of the concrete message.
+     */
+    static class Header extends DiscoveryMessage {
+        private Header(InetAddress initiator, int sequenceId, long expiration) {
+            super(initiator, sequenceId, expiration);
+        }
+
+        static Header readData(DataInputStream in) throws IOException {
+            return new Header(InetAddress.getByAddress(Message.readBytes(in)), in.readInt(), in.readLong());
+        }
+
+        static Header decode(ByteBuffer in) throws IOException {
+            return new Header(MessageCodec.readAddress(in), MessageCodec.readVarInt(in), MessageCodec.readVarLong(in));
+        }
+    }
+}
@@ -3,11 +3,34 @@ package pfs.messages;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class DiscoveryQueryMessage extends DiscoveryMessage {
-    public int hopCount;
-    public boolean isKeywordSearch;
-    public String filter;
+    public final int hopCount;
+    public final boolean isKeywordSearch;
+    public final String filter;
+
+    public DiscoveryQueryMessage(InetAddress initiator, int sequenceId, long expiration, int hopCount, boolean isKeywordSearch, String filter) {
+        super(initiator, sequenceId, expiration);
+        this.hopCount = hopCount;
+        this.isKeywordSearch = isKeywordSearch;
+        this.filter = filter;
+    }
+
+    private DiscoveryQueryMessage(DiscoveryMessage header, int hopCount, boolean isKeywordSearch, String filter) {
+        super(header);
+        this.hopCount = hopCount;
+        this.isKeywordSearch = isKeywordSearch;
+        this.filter = filter;
+    }
+
+    /**
+     * @return this query as forwarded to the next hop, with one hop less to go
+     */
+    public DiscoveryQueryMessage forwarded() {
+        return new DiscoveryQueryMessage(this, hopCount - 1, isKeywordSearch, filter);
+    }
 
     @Override
     public void writeData(DataOutputStream out) throws IOException {
@@ -17,11 +40,22 @@ public class DiscoveryQueryMessage extends DiscoveryMessage {
         out.writeUTF(filter);
     }
 
+    static DiscoveryQueryMessage readData(DataInputStream in) throws IOException {
+        return new DiscoveryQueryMessage(Header.readData(in), in.readInt(), in.readBoolean(), in.readUTF());
+    }
+
     @Override
-    public void readData(DataInputStream in) throws IOException {
-        super.readData(in);
-        this.hopCount = in.readInt();
-        this.isKeywordSearch = in.readBoolean();
-        this.filter = in.readUTF();
+    public void encode(ByteBuffer out) {
+        super.encode(out);
+        MessageCodec.writeVarInt(out, hopCount);
+        out.put((byte) (isKeywordSearch ? 1 : 0));
+        MessageCodec.writeString(out, filter);
+    }
+
+    static DiscoveryQueryMessage decode(ByteBuffer in) throws IOException {
+        Header header = Header.decode(in);
+        int hopCount = MessageCodec.readVarInt(in);
+        boolean isKeywordSearch = in.get() != 0;
+        return new DiscoveryQueryMessage(header, hopCount, isKeywordSearch, MessageCodec.readString(in));
     }
 }
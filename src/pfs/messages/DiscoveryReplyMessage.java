@@ -4,25 +4,121 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Answers a query with every matching file held by the terminator, each with the Merkle root of
+ * its content if the terminator has hashed it.
+ * The legacy encoding writes the first match where older peers expect it and appends the rest,
+ * which older peers never read. Both encodings end with a flag for replies answered from a
+ * relay's cache, which peers without it read as false.
+ */
 public class DiscoveryReplyMessage extends DiscoveryMessage {
-    public InetAddress terminator;
-    public String keyword;
-    public String fileName;
+    public final InetAddress terminator;
+    public final List<Match> matches; // unmodifiable, never empty
+    public final boolean cached; // answered from a relay's query-result cache, not by the terminator itself
+
+    public static class Match {
+        public final String keyword;
+        public final String fileName;
+        public final byte[] contentHash; // empty if unknown
+
+        public Match(String keyword, String fileName, byte[] contentHash) {
+            this.keyword = keyword;
+            this.fileName = fileName;
+            this.contentHash = contentHash;
+        }
+
+        public boolean hasContentHash() {return this.contentHash.length > 0;}
+    }
+
+    /**
+     * Answers {@code query} on behalf of {@code terminator}.
+     */
+    public DiscoveryReplyMessage(DiscoveryMessage query, InetAddress terminator, List<Match> matches) {
+        this(query, terminator, matches, false);
+    }
+
+    public DiscoveryReplyMessage(DiscoveryMessage query, InetAddress terminator, List<Match> matches, boolean cached) {
+        super(query);
+        this.terminator = terminator;
+        this.matches = Collections.unmodifiableList(new ArrayList<>(matches));
+        this.cached = cached;
+    }
 
     @Override
     public void writeData(DataOutputStream out) throws IOException {
         super.writeData(out);
         Message.writeBytes(out, terminator.getAddress());
-        out.writeUTF(keyword);
-        out.writeUTF(fileName);
+        out.writeUTF(matches.get(0).keyword);
+        out.writeUTF(matches.get(0).fileName);
+        out.writeInt(matches.size() - 1);
+        for (Match match : matches.subList(1, matches.size())) {
+            out.writeUTF(match.keyword);
+            out.writeUTF(match.fileName);
+        }
+        for (Match match : matches) {
+            Message.writeBytes(out, match.contentHash);
+        }
+        out.writeBoolean(cached);
+    }
+
+    static DiscoveryReplyMessage readData(DataInputStream in) throws IOException {
+        Header header = Header.readData(in);
+        InetAddress terminator = InetAddress.getByAddress(Message.readBytes(in));
+        List<String> keywords = new ArrayList<>();
+        List<String> fileNames = new ArrayList<>();
+        keywords.add(in.readUTF());
+        fileNames.add(in.readUTF());
+        // older peers send a single match and no hashes
+        int moreMatches = in.available() > 0 ? in.readInt() : 0;
+        for (int i = 0; i < moreMatches; i++) {
+            keywords.add(in.readUTF());
+            fileNames.add(in.readUTF());
+        }
+        boolean hasHashes = in.available() > 0;
+        List<Match> matches = new ArrayList<>();
+        for (int i = 0; i < keywords.size(); i++) {
+            byte[] contentHash = hasHashes ? Message.readBytes(in) : new byte[0];
+            matches.add(new Match(keywords.get(i), fileNames.get(i), contentHash));
+        }
+        boolean cached = in.available() > 0 && in.readBoolean();
+        return new DiscoveryReplyMessage(header, terminator, matches, cached);
     }
 
     @Override
-    public void readData(DataInputStream in) throws IOException {
-        super.readData(in);
-        this.terminator = InetAddress.getByAddress(Message.readBytes(in));
-        this.keyword = in.readUTF();
-        this.fileName = in.readUTF();
+    public void encode(ByteBuffer out) {
+        super.encode(out);
+        MessageCodec.writeAddress(out, terminator);
+        MessageCodec.writeVarInt(out, matches.size());
+        for (Match match : matches) {
+            MessageCodec.writeString(out, match.keyword);
+            MessageCodec.writeString(out, match.fileName);
+            out.put((byte) match.contentHash.length);
+            out.put(match.contentHash);
+        }
+        out.put((byte) (cached ? 1 : 0));
+    }
+
+    static DiscoveryReplyMessage decode(ByteBuffer in) throws IOException {
+        Header header = Header.decode(in);
+        InetAddress terminator = MessageCodec.readAddress(in);
+        int count = MessageCodec.readVarInt(in);
+        if (count < 1 || count > in.remaining()) {
+            throw new IOException("bad match count " + count);
+        }
+        List<Match> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String keyword = MessageCodec.readString(in);
+            String fileName = MessageCodec.readString(in);
+            byte[] contentHash = new byte[in.get() & 0xFF];
+            in.get(contentHash);
+            matches.add(new Match(keyword, fileName, contentHash));
+        }
+        boolean cached = in.hasRemaining() && in.get() != 0;
+        return new DiscoveryReplyMessage(header, terminator, matches, cached);
     }
 }
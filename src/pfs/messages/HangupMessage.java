@@ -4,16 +4,30 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class HangupMessage implements Message {
-    public InetAddress handoffAddress;
+    public final InetAddress handoffAddress;
+
+    public HangupMessage(InetAddress handoffAddress) {
+        this.handoffAddress = handoffAddress;
+    }
+
     @Override
     public void writeData(DataOutputStream out) throws IOException {
         Message.writeBytes(out, handoffAddress.getAddress());
     }
 
+    static HangupMessage readData(DataInputStream in) throws IOException {
+        return new HangupMessage(InetAddress.getByAddress(Message.readBytes(in)));
+    }
+
     @Override
-    public void readData(DataInputStream in) throws IOException {
-        this.handoffAddress = InetAddress.getByAddress(Message.readBytes(in));
+    public void encode(ByteBuffer out) {
+        MessageCodec.writeAddress(out, handoffAddress);
+    }
+
+    static HangupMessage decode(ByteBuffer in) throws IOException {
+        return new HangupMessage(MessageCodec.readAddress(in));
     }
 }
@@ -0,0 +1,41 @@
+package pfs.messages;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Link-level version negotiation, never forwarded past the neighbor.
+ * Each side offers its highest codec version; the answer with {@code ack} set carries the
+ * version both sides agreed on, and every frame sent after it uses that version.
+ */
+public class HelloMessage implements Message {
+    public final int version;
+    public final boolean ack;
+
+    public HelloMessage(int version, boolean ack) {
+        this.version = version;
+        this.ack = ack;
+    }
+
+    @Override
+    public void writeData(DataOutputStream out) throws IOException {
+        out.writeByte(version);
+        out.writeBoolean(ack);
+    }
+
+    static HelloMessage readData(DataInputStream in) throws IOException {
+        return new HelloMessage(in.readUnsignedByte(), in.readBoolean());
+    }
+
+    @Override
+    public void encode(ByteBuffer out) {
+        out.put((byte) version);
+        out.put((byte) (ack ? 1 : 0));
+    }
+
+    static HelloMessage decode(ByteBuffer in) {
+        return new HelloMessage(in.get() & 0xFF, in.get() != 0);
+    }
+}
@@ -3,19 +3,33 @@ package pfs.messages;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+/**
+ * A discovery protocol message. Messages are immutable, so one instance, and the frame encoded
+ * from it, can be shared by every link it is sent on; decoding builds a new instance through
+ * {@link MessageCodec}.
+ */
 public interface Message {
+    /** Legacy (version 1) body encoding. */
     void writeData(DataOutputStream out) throws IOException;
 
-    void readData(DataInputStream in) throws IOException;
+    /** Compact (version 2) body encoding, see {@link MessageCodec}. */
+    void encode(ByteBuffer out);
 
     static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
         out.writeInt(bytes.length);
         out.write(bytes);
     }
 
+    /**
+     * @param in a stream over one frame, so {@link DataInputStream#available()} is what is left of it
+     */
     static byte[] readBytes(DataInputStream in) throws IOException {
         int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("byte array of length " + length + " overruns the frame");
+        }
         byte[] bytes = new byte[length];
         in.readFully(bytes);
         return bytes;
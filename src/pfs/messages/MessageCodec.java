@@ -0,0 +1,302 @@
+package pfs.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Frame encoding for discovery links.
+ * <p>
+ * Version 1 (legacy) frames are a 4-byte length, a 1-byte type and a {@link DataOutputStream} body.
+ * Version 2 (compact) frames are a varint length, a 1-byte type and a body of varints,
+ * length-prefixed UTF-8 strings and length-prefixed raw addresses, encoded straight into and
+ * decoded straight out of the link buffers. Links start in version 1 and switch after a
+ * {@link HelloMessage} exchange, so peers that only know version 1 keep working. Peers from
+ * before framed links sent unframed messages and cannot read either version.
+ */
+public final class MessageCodec {
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_COMPACT = 2;
+    public static final int CURRENT_VERSION = VERSION_COMPACT;
+
+    public static final byte TYPE_QUERY = 0;
+    public static final byte TYPE_REPLY = 1;
+    public static final byte TYPE_HANGUP = 2;
+    public static final byte TYPE_HELLO = 3;
+    public static final byte TYPE_SUMMARY = 4;
+    public static final byte TYPE_DEGREE = 5;
+
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int LEGACY_HEADER_SIZE = Integer.BYTES;
+    private static final int MAX_VARINT_SIZE = 5;
+
+    // decoded IPv4 addresses are interned so hot peers do not allocate an InetAddress per frame
+    private static final int ADDRESS_CACHE_SIZE = 1024;
+    private static final AtomicReferenceArray<InetAddress> addressCache = new AtomicReferenceArray<>(ADDRESS_CACHE_SIZE);
+
+    private MessageCodec() {}
+
+    public static byte typeOf(Message message) {
+        if (message instanceof DiscoveryQueryMessage) {
+            return TYPE_QUERY;
+        } else if (message instanceof DiscoveryReplyMessage) {
+            return TYPE_REPLY;
+        } else if (message instanceof HangupMessage) {
+            return TYPE_HANGUP;
+        } else if (message instanceof HelloMessage) {
+            return TYPE_HELLO;
+        } else if (message instanceof RoutingSummaryMessage) {
+            return TYPE_SUMMARY;
+        } else if (message instanceof DegreeMessage) {
+            return TYPE_DEGREE;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * @return the message with a legacy body of the given type, or null for types this node does not know
+     */
+    private static Message readData(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case TYPE_QUERY:
+                return DiscoveryQueryMessage.readData(in);
+            case TYPE_REPLY:
+                return DiscoveryReplyMessage.readData(in);
+            case TYPE_HANGUP:
+                return HangupMessage.readData(in);
+            case TYPE_HELLO:
+                return HelloMessage.readData(in);
+            case TYPE_SUMMARY:
+                return RoutingSummaryMessage.readData(in);
+            case TYPE_DEGREE:
+                return DegreeMessage.readData(in);
+        }
+        return null;
+    }
+
+    /**
+     * @return the message with a compact body of the given type, or null for types this node does not know
+     */
+    private static Message decode(byte type, ByteBuffer in) throws IOException {
+        switch (type) {
+            case TYPE_QUERY:
+                return DiscoveryQueryMessage.decode(in);
+            case TYPE_REPLY:
+                return DiscoveryReplyMessage.decode(in);
+            case TYPE_HANGUP:
+                return HangupMessage.decode(in);
+            case TYPE_HELLO:
+                return HelloMessage.decode(in);
+            case TYPE_SUMMARY:
+                return RoutingSummaryMessage.decode(in);
+            case TYPE_DEGREE:
+                return DegreeMessage.decode(in);
+        }
+        return null;
+    }
+
+    /**
+     * Appends one frame to {@code out}.
+     *
+     * @throws BufferOverflowException if the frame does not fit; the buffer position is then undefined
+     */
+    public static void writeFrame(ByteBuffer out, Message message, int version) throws IOException {
+        if (version == VERSION_LEGACY) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(0);
+            data.writeByte(MessageCodec.typeOf(message));
+            message.writeData(data);
+            data.flush();
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.capacity() - LEGACY_HEADER_SIZE);
+            out.put(frame);
+            return;
+        }
+
+        // reserve the widest length prefix, then slide the frame back once its length is known
+        int start = out.position();
+        out.position(start + MAX_VARINT_SIZE);
+        out.put(MessageCodec.typeOf(message));
+        message.encode(out);
+        int frameLength = out.position() - start - MAX_VARINT_SIZE;
+        int headerSize = MessageCodec.varIntSize(frameLength);
+        byte[] array = out.array();
+        int offset = out.arrayOffset();
+        System.arraycopy(array, offset + start + MAX_VARINT_SIZE, array, offset + start + headerSize, frameLength);
+        out.position(start);
+        MessageCodec.writeVarInt(out, frameLength);
+        out.position(start + headerSize + frameLength);
+    }
+
+    /**
+     * @return the total size of the frame at the buffer position, or -1 if more bytes are needed
+     * to tell
+     */
+    public static int peekFrameSize(ByteBuffer in, int version) throws IOException {
+        int position = in.position();
+        int limit = in.limit();
+        if (version == VERSION_LEGACY) {
+            if (limit - position < LEGACY_HEADER_SIZE) {
+                return -1;
+            }
+            return MessageCodec.checkFrameLength(in.getInt(position)) + LEGACY_HEADER_SIZE;
+        }
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (position + i >= limit) {
+                return -1;
+            }
+            byte b = in.get(position + i);
+            value |= (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                return MessageCodec.checkFrameLength(value) + i + 1;
+            }
+        }
+        throw new IOException("malformed frame length");
+    }
+
+    /**
+     * Decodes one complete frame, as sized by {@link #peekFrameSize}, and advances past it.
+     *
+     * @return the message, or null if the frame is of a type this node does not know
+     */
+    public static Message readFrame(ByteBuffer in, int version) throws IOException {
+        int frameLength = version == VERSION_LEGACY ? in.getInt() : MessageCodec.readVarInt(in);
+        int end = in.position() + frameLength;
+        byte type = in.get();
+        try {
+            // frames of types from newer peers decode to null and are skipped
+            if (version == VERSION_LEGACY) {
+                int bodyOffset = in.arrayOffset() + in.position();
+                return MessageCodec.readData(type, new DataInputStream(new ByteArrayInputStream(in.array(), bodyOffset, end - in.position())));
+            }
+            int limit = in.limit();
+            in.limit(end);
+            try {
+                return MessageCodec.decode(type, in);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("truncated frame");
+            } finally {
+                in.limit(limit);
+            }
+        } finally {
+            in.position(end);
+        }
+    }
+
+    public static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    public static void writeString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        MessageCodec.writeVarInt(out, bytes.length);
+        out.put(bytes);
+    }
+
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = MessageCodec.readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("bad string length " + length);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    public static void writeAddress(ByteBuffer out, InetAddress address) {
+        if (address instanceof Inet4Address) {
+            out.put((byte) 4);
+            // Inet4Address.hashCode is the address itself, which avoids copying getAddress()
+            out.putInt(address.hashCode());
+        } else {
+            byte[] bytes = address.getAddress();
+            out.put((byte) bytes.length);
+            out.put(bytes);
+        }
+    }
+
+    public static InetAddress readAddress(ByteBuffer in) throws IOException {
+        int length = in.get() & 0xFF;
+        if (length == 4) {
+            int bits = in.getInt();
+            int slot = (bits * 0x9E3779B9 >>> 22) & (ADDRESS_CACHE_SIZE - 1);
+            InetAddress cached = addressCache.get(slot);
+            if (cached != null && cached.hashCode() == bits) {
+                return cached;
+            }
+            InetAddress address = InetAddress.getByAddress(new byte[]{
+                    (byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits});
+            addressCache.set(slot, address);
+            return address;
+        }
+        if (length != 16) {
+            throw new IOException("bad address length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int checkFrameLength(int frameLength) throws IOException {
+        if (frameLength < 1 || frameLength > MAX_FRAME_LENGTH) {
+            throw new IOException("bad frame length " + frameLength);
+        }
+        return frameLength;
+    }
+}
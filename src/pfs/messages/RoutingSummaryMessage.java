@@ -0,0 +1,112 @@
+package pfs.messages;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Link-level summary of the content reachable through the sender, never forwarded past the neighbor.
+ * Each level is a Bloom filter of the same size; level {@code i} covers the terms held {@code i}
+ * hops behind the sender.
+ * The compact encoding run-length encodes zero words, so sparse filters stay small on the wire.
+ * The levels are shared, not copied, and must not be modified once the message is built.
+ */
+public class RoutingSummaryMessage implements Message {
+    public final int hashCount;
+    public final long[][] levels;
+
+    public RoutingSummaryMessage(int hashCount, long[][] levels) {
+        this.hashCount = hashCount;
+        this.levels = levels;
+    }
+
+    @Override
+    public void writeData(DataOutputStream out) throws IOException {
+        out.writeByte(hashCount);
+        out.writeByte(levels.length);
+        out.writeInt(levels[0].length);
+        for (long[] level : levels) {
+            for (long word : level) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    static RoutingSummaryMessage readData(DataInputStream in) throws IOException {
+        int hashCount = in.readUnsignedByte();
+        int levelCount = in.readUnsignedByte();
+        int wordCount = RoutingSummaryMessage.checkSize(levelCount, in.readInt());
+        if ((long) levelCount * wordCount * Long.BYTES > in.available()) {
+            throw new IOException("summary of " + levelCount + " x " + wordCount + " words overruns the frame");
+        }
+        long[][] levels = new long[levelCount][wordCount];
+        for (long[] level : levels) {
+            for (int i = 0; i < wordCount; i++) {
+                level[i] = in.readLong();
+            }
+        }
+        return new RoutingSummaryMessage(hashCount, levels);
+    }
+
+    @Override
+    public void encode(ByteBuffer out) {
+        MessageCodec.writeVarInt(out, hashCount);
+        MessageCodec.writeVarInt(out, levels.length);
+        MessageCodec.writeVarInt(out, levels[0].length);
+        for (long[] level : levels) {
+            // each non-zero word is preceded by the number of zero words before it
+            int zeroRun = 0;
+            for (long word : level) {
+                if (word == 0) {
+                    zeroRun++;
+                } else {
+                    MessageCodec.writeVarInt(out, zeroRun);
+                    out.putLong(word);
+                    zeroRun = 0;
+                }
+            }
+            if (zeroRun > 0) {
+                MessageCodec.writeVarInt(out, zeroRun);
+            }
+        }
+    }
+
+    static RoutingSummaryMessage decode(ByteBuffer in) throws IOException {
+        int hashCount = MessageCodec.readVarInt(in);
+        int levelCount = MessageCodec.readVarInt(in);
+        int wordCount = RoutingSummaryMessage.checkSize(levelCount, MessageCodec.readVarInt(in));
+        long[][] levels = new long[levelCount][wordCount];
+        for (long[] level : levels) {
+            int i = 0;
+            while (i < wordCount) {
+                int zeroRun = MessageCodec.readVarInt(in);
+                if (zeroRun < 0 || zeroRun > wordCount - i) {
+                    throw new IOException("bad zero run " + zeroRun);
+                }
+                i += zeroRun;
+                if (i < wordCount) {
+                    level[i++] = in.getLong();
+                }
+            }
+        }
+        return new RoutingSummaryMessage(hashCount, levels);
+    }
+
+    /**
+     * Checks the size before anything is allocated. Zero runs let a tiny compact frame describe
+     * huge filters, so the bound is the legacy encoding instead: it must fit in one frame, which
+     * caps a summary at the size of the largest frame a link accepts.
+     *
+     * @return {@code wordCount}
+     */
+    private static int checkSize(int levelCount, int wordCount) throws IOException {
+        if (levelCount < 0 || levelCount > 255) {
+            throw new IOException("bad level count " + levelCount);
+        }
+        if (wordCount < 1 || (long) levelCount * wordCount > MessageCodec.MAX_FRAME_LENGTH / Long.BYTES) {
+            throw new IOException("bad filter size " + levelCount + " x " + wordCount + " words");
+        }
+        return wordCount;
+    }
+}
@@ -0,0 +1,74 @@
+package pfs.tasks;
+
+/**
+ * Fixed-size Bloom filter over strings. The bit count is a power of two and the probe positions
+ * are derived from one 64-bit hash by double hashing, so adding or testing a term allocates nothing.
+ */
+class BloomFilter {
+    private final long[] words;
+    private final int hashCount;
+    private final int mask;
+
+    /**
+     * @param bitCount rounded up to a power of two of at least 64
+     */
+    BloomFilter(int bitCount, int hashCount) {
+        this(new long[Integer.highestOneBit(Math.max(bitCount, Long.SIZE) * 2 - 1) / Long.SIZE], hashCount);
+    }
+
+    /**
+     * Wraps {@code words} without copying; its length must be a power of two.
+     */
+    BloomFilter(long[] words, int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+        this.mask = words.length * Long.SIZE - 1;
+    }
+
+    long[] getWords() {return this.words;}
+
+    int getHashCount() {return this.hashCount;}
+
+    void add(String term) {
+        long hash = BloomFilter.hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < this.hashCount; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            this.words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String term) {
+        long hash = BloomFilter.hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < this.hashCount; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            if ((this.words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void or(BloomFilter other) {
+        for (int i = 0; i < this.words.length; i++) {
+            this.words[i] |= other.words[i];
+        }
+    }
+
+    private static long hash(String term) {
+        // FNV-1a over the chars, then a finalizer so every bit depends on every char
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            hash = (hash ^ term.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
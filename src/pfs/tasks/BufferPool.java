@@ -0,0 +1,58 @@
+package pfs.tasks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the fixed-size link buffers so neighbor churn does not keep allocating
+ * 64 KiB arrays, and the small buffers that shared frames are encoded into so forwarding
+ * does not allocate per message. Buffers of any other size are left to the GC.
+ */
+class BufferPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int FRAME_SIZE = 512;
+    private static final int MAX_POOLED = 256;
+    private static final int MAX_POOLED_FRAMES = 8192;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledFrames = new AtomicInteger();
+
+    private BufferPool() {}
+
+    static ByteBuffer acquire() {
+        return BufferPool.acquire(buffers, pooled, BUFFER_SIZE);
+    }
+
+    static ByteBuffer acquireFrame() {
+        return BufferPool.acquire(frames, pooledFrames, FRAME_SIZE);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer.capacity() == BUFFER_SIZE) {
+            BufferPool.release(buffers, pooled, MAX_POOLED, buffer);
+        } else if (buffer.capacity() == FRAME_SIZE) {
+            BufferPool.release(frames, pooledFrames, MAX_POOLED_FRAMES, buffer);
+        }
+    }
+
+    private static ByteBuffer acquire(ConcurrentLinkedQueue<ByteBuffer> pool, AtomicInteger count, int size) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(size);
+        }
+        count.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void release(ConcurrentLinkedQueue<ByteBuffer> pool, AtomicInteger count, int maxPooled, ByteBuffer buffer) {
+        if (count.incrementAndGet() > maxPooled) {
+            count.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
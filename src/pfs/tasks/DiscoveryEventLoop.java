@@ -0,0 +1,128 @@
+package pfs.tasks;
+
+import pfs.EventLog;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop multiplexing many discovery links onto one thread.
+ * Work from other threads is handed over with {@link #execute(Runnable)}, or delayed with
+ * {@link #schedule(Runnable, long)}; delays have the millisecond resolution of the selector.
+ */
+class DiscoveryEventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers; // event loop thread only
+    private final Thread thread;
+
+    private static class Timer {
+        private final long deadlineNanos;
+        private final Runnable task;
+
+        private Timer(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+    }
+
+    DiscoveryEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.deadlineNanos));
+        this.thread = new Thread(this);
+        this.thread.setName(name);
+    }
+
+    Selector getSelector() {return this.selector;}
+
+    void start() {
+        this.thread.start();
+    }
+
+    void stop() throws IOException {
+        this.thread.interrupt();
+        this.selector.wakeup();
+    }
+
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Runs {@code task} on the loop thread once {@code delayNanos} have passed.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        long deadlineNanos = System.nanoTime() + delayNanos;
+        this.execute(() -> this.timers.add(new Timer(deadlineNanos, task)));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                Timer next = this.timers.peek();
+                if (next == null) {
+                    this.selector.select();
+                } else {
+                    long waitNanos = next.deadlineNanos - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        this.selector.selectNow();
+                    } else {
+                        // round up, since a zero timeout would block indefinitely
+                        this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)));
+                    }
+                }
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    DiscoveryEventLoop.runTask(task);
+                }
+                long now = System.nanoTime();
+                while ((next = this.timers.peek()) != null && next.deadlineNanos - now <= 0) {
+                    DiscoveryEventLoop.runTask(this.timers.poll().task);
+                }
+
+                Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    // each link fails on its own runtime errors, without ending the loop
+                    PeerDiscoveryTransceiver transceiver = (PeerDiscoveryTransceiver) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            transceiver.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            transceiver.handleWrite();
+                        }
+                    } catch (CancelledKeyException ignored) {
+                        // link was closed from another thread
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                this.selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            EventLog.text(EventLog.Level.WARN, "discovery event loop task failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package pfs.tasks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Chunk-completion bitmap persisted next to a partially downloaded file.
+ * Layout: content length (8 bytes), chunk size (4 bytes), then one bit per chunk.
+ */
+class DownloadProgress implements AutoCloseable {
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final byte[] bitmap;
+    private final int chunkCount;
+    private final boolean resumed;
+
+    private DownloadProgress(Path path, FileChannel channel, byte[] bitmap, int chunkCount, boolean resumed) {
+        this.path = path;
+        this.channel = channel;
+        this.bitmap = bitmap;
+        this.chunkCount = chunkCount;
+        this.resumed = resumed;
+    }
+
+    static DownloadProgress open(Path path, long contentLength, int chunkSize) throws IOException {
+        int chunkCount = (int) ((contentLength + chunkSize - 1) / chunkSize);
+        byte[] bitmap = new byte[(chunkCount + 7) / 8];
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // resume only if the bitmap describes the same file layout
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() == HEADER_SIZE + bitmap.length && channel.read(header, 0) == HEADER_SIZE) {
+                header.flip();
+                if (header.getLong() == contentLength && header.getInt() == chunkSize) {
+                    ByteBuffer bits = ByteBuffer.wrap(bitmap);
+                    while (bits.hasRemaining()) {
+                        if (channel.read(bits, HEADER_SIZE + bits.position()) < 0) {
+                            break;
+                        }
+                    }
+                    return new DownloadProgress(path, channel, bitmap, chunkCount, true);
+                }
+            }
+
+            channel.truncate(0);
+            header.clear();
+            header.putLong(contentLength).putInt(chunkSize).flip();
+            channel.write(header, 0);
+            channel.write(ByteBuffer.wrap(bitmap), HEADER_SIZE);
+            return new DownloadProgress(path, channel, bitmap, chunkCount, false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    boolean isResumed() {return this.resumed;}
+
+    synchronized boolean isComplete(int chunk) {
+        return (this.bitmap[chunk >>> 3] & (1 << (chunk & 7))) != 0;
+    }
+
+    synchronized int completedCount() {
+        int count = 0;
+        for (int chunk = 0; chunk < this.chunkCount; chunk++) {
+            if (this.isComplete(chunk)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void markComplete(int chunk) throws IOException {
+        int index = chunk >>> 3;
+        this.bitmap[index] |= (byte) (1 << (chunk & 7));
+        this.channel.write(ByteBuffer.wrap(this.bitmap, index, 1), HEADER_SIZE + index);
+    }
+
+    synchronized void reset() throws IOException {
+        Arrays.fill(this.bitmap, (byte) 0);
+        this.channel.write(ByteBuffer.wrap(this.bitmap), HEADER_SIZE);
+    }
+
+    void delete() throws IOException {
+        this.channel.close();
+        Files.deleteIfExists(this.path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
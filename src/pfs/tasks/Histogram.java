@@ -0,0 +1,92 @@
+package pfs.tasks;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, cheap enough to record on every message.
+ * Values below 16 are counted exactly; above that each power of two is split into 8 buckets,
+ * so a percentile is reported as the upper bound of its bucket, at most 12.5% high.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = EXACT + (Long.SIZE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    Histogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    void record(long value) {
+        value = Math.max(0, value);
+        this.counts.incrementAndGet(Histogram.bucketOf(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulate(value);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+        long mantissa = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    long getCount() {return this.count.sum();}
+
+    long getMax() {return this.max.get();}
+
+    double getMean() {
+        long n = this.getCount();
+        return n == 0 ? 0.0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * @return an upper bound of the {@code quantile} of the values recorded so far, or 0 if there are none
+     */
+    long getPercentile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(Histogram.upperBoundOf(i), this.getMax());
+            }
+        }
+        return 0;
+    }
+
+    void addTo(Map<String, Number> snapshot, String prefix) {
+        snapshot.put(prefix + ".count", this.getCount());
+        snapshot.put(prefix + ".mean", this.getMean());
+        snapshot.put(prefix + ".p50", this.getPercentile(0.50));
+        snapshot.put(prefix + ".p90", this.getPercentile(0.90));
+        snapshot.put(prefix + ".p99", this.getPercentile(0.99));
+        snapshot.put(prefix + ".max", this.getMax());
+    }
+}
@@ -0,0 +1,173 @@
+package pfs.tasks;
+
+import pfs.Constants;
+import pfs.FileDirectory;
+import pfs.messages.DiscoveryQueryMessage;
+import pfs.messages.DiscoveryReplyMessage;
+import pfs.messages.Message;
+
+import java.net.InetAddress;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Many nodes in one JVM, linked in memory and run in virtual time, for experiments with the
+ * overlay at a scale no test cluster reaches.
+ * Each node is placed at a random point of a unit square, and a message between two nodes takes
+ * a latency between the minimum and maximum that grows with their distance. A shared
+ * {@link TrackerMembership} stands in for the tracker.
+ * <p>
+ * Timers, message handling and deliveries are events of one queue, run on the calling thread in
+ * time order and, at equal times, in the order they were scheduled; a run therefore depends only
+ * on the seed and the calls made. Nothing here is thread-safe: add nodes, search, and advance
+ * time from one thread, and only block on a search after {@link #runUntil} has finished it.
+ */
+public class InMemoryNetwork {
+    private final Random random;
+    private final long minLatencyMillis;
+    private final long maxLatencyMillis;
+    private final PriorityQueue<Event> events;
+    private final Map<InetAddress, InMemoryTransport> transports; // nodes that are up
+    private final TrackerMembership tracker;
+
+    private long now;
+    private long nextSequence;
+    private long queriesSent;
+    private long repliesSent;
+    private long controlSent;
+
+    private static class Event {
+        private final long timeMillis;
+        private final long sequence;
+        private final Runnable task;
+
+        private Event(long timeMillis, long sequence, Runnable task) {
+            this.timeMillis = timeMillis;
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+    public InMemoryNetwork(long seed, long minLatencyMillis, long maxLatencyMillis) {
+        this.random = new Random(seed);
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+        this.events = new PriorityQueue<>(Comparator.comparingLong((Event event) -> event.timeMillis)
+                .thenComparingLong((Event event) -> event.sequence));
+        this.transports = new HashMap<>();
+        this.tracker = new TrackerMembership(Constants.TRACKER_LEASE_MILLIS);
+        this.scheduleAt(Constants.TRACKER_EXPIRY_INTERVAL_MILLIS, this::expireLeases);
+    }
+
+    /**
+     * @return the virtual time in milliseconds, starting from 0
+     */
+    public long currentTimeMillis() {return this.now;}
+
+    /**
+     * Creates a node known by {@code address}, sharing the files of {@code directory}.
+     * The node joins once {@link Node#start} is called, which may happen inside a scheduled task.
+     */
+    public Node addNode(InetAddress address, FileDirectory directory) {
+        if (this.transports.containsKey(address)) {
+            throw new IllegalArgumentException(address.getHostAddress() + " is already up");
+        }
+        InMemoryTransport transport = new InMemoryTransport(this, address, this.random.nextDouble(), this.random.nextDouble());
+        this.transports.put(address, transport);
+        return new Node(directory, transport, false);
+    }
+
+    /**
+     * Fails the node known by {@code address} without a goodbye: its neighbors see their links
+     * drop, and the tracker keeps it until its lease runs out.
+     */
+    public void crash(InetAddress address) {
+        InMemoryTransport transport = this.transports.get(address);
+        if (transport != null) {
+            transport.crash();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the simulation thread once {@code delayMillis} of virtual time have passed.
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        this.scheduleAt(this.now + Math.max(0, delayMillis), task);
+    }
+
+    /**
+     * Runs every event due up to {@code timeMillis}, then sets the clock to it.
+     */
+    public void runUntil(long timeMillis) {
+        Event event;
+        while ((event = this.events.peek()) != null && event.timeMillis <= timeMillis) {
+            this.events.poll();
+            this.now = event.timeMillis;
+            event.task.run();
+        }
+        this.now = Math.max(this.now, timeMillis);
+    }
+
+    public long getQueriesSent() {return this.queriesSent;}
+
+    public long getRepliesSent() {return this.repliesSent;}
+
+    /**
+     * @return hangups and routing summaries sent
+     */
+    public long getControlSent() {return this.controlSent;}
+
+    void scheduleAt(long timeMillis, Runnable task) {
+        this.events.add(new Event(timeMillis, this.nextSequence++, task));
+    }
+
+    long latencyMillis(double distance) {
+        return this.minLatencyMillis + Math.round((this.maxLatencyMillis - this.minLatencyMillis) * distance);
+    }
+
+    InMemoryTransport transportOf(InetAddress address) {
+        InMemoryTransport transport = this.transports.get(address);
+        return transport != null && transport.isUp() ? transport : null;
+    }
+
+    void remove(InMemoryTransport transport) {
+        this.transports.remove(transport.getLocalAddress(), transport);
+    }
+
+    void recordSent(Message message) {
+        if (message instanceof DiscoveryQueryMessage) {
+            this.queriesSent++;
+        } else if (message instanceof DiscoveryReplyMessage) {
+            this.repliesSent++;
+        } else {
+            this.controlSent++;
+        }
+    }
+
+    Transport.JoinReply join(InetAddress peer) {
+        List<InetAddress> sample = this.sample(peer);
+        this.tracker.renew(peer, this.now);
+        return new Transport.JoinReply(sample, this.tracker.getLeaseMillis());
+    }
+
+    List<InetAddress> sample(InetAddress peer) {
+        return this.tracker.sample(Constants.TRACKER_SAMPLE_SIZE, peer, this.now, this.random);
+    }
+
+    void heartbeat(InetAddress peer) {
+        this.tracker.renew(peer, this.now);
+    }
+
+    void leave(InetAddress peer) {
+        this.tracker.remove(peer);
+    }
+
+    private void expireLeases() {
+        this.tracker.expire(this.now);
+        this.scheduleAt(this.now + Constants.TRACKER_EXPIRY_INTERVAL_MILLIS, this::expireLeases);
+    }
+}
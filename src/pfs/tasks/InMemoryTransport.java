@@ -0,0 +1,272 @@
+package pfs.tasks;
+
+import pfs.Constants;
+import pfs.EventLog;
+import pfs.FileDirectory;
+import pfs.messages.Message;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transport of one node of an {@link InMemoryNetwork}.
+ * Links hand message objects to the other end without encoding them, after the one-way latency
+ * between the two nodes; a frame in the sender queue is taken as soon as it is queued, so queues
+ * only shed messages that expired. Opening a link, probing a peer and asking the tracker take no
+ * virtual time. Downloads are not simulated: nothing serves the node's files.
+ */
+class InMemoryTransport implements Transport {
+    private final InMemoryNetwork network;
+    private final InetAddress localAddress;
+    private final double x;
+    private final double y;
+    private final LinkStatistics statistics;
+    private final TransferStatistics transferStatistics; // stays empty, as no files are transferred
+    private final List<VirtualTimeScheduler> schedulers;
+    private final Set<InMemoryLink> links; // open links, in opening order
+
+    private Listener listener;
+    private boolean accepting;
+    private boolean up;
+
+    /**
+     * One end of a link; each end belongs to the transport of its node.
+     */
+    private static class InMemoryLink implements Link {
+        private final InMemoryTransport transport;
+        private final InetAddress neighborAddress;
+        private final InetAddress initiatorAddress;
+        private final SendQueue senderQueue;
+        private final long latencyMillis;
+        private InMemoryLink peer;
+        private boolean closed;
+
+        private InMemoryLink(InMemoryTransport transport, InetAddress neighborAddress, InetAddress initiatorAddress, long latencyMillis) {
+            this.transport = transport;
+            this.neighborAddress = neighborAddress;
+            this.initiatorAddress = initiatorAddress;
+            this.senderQueue = new SendQueue(Constants.DISCOVERY_QUEUE_CAPACITY, transport.statistics);
+            this.latencyMillis = latencyMillis;
+            transport.links.add(this);
+        }
+
+        @Override
+        public InetAddress getNeighborAddress() {return this.neighborAddress;}
+
+        @Override
+        public InetAddress getInitiatorAddress() {return this.initiatorAddress;}
+
+        @Override
+        public SendQueue getSenderQueue() {return this.senderQueue;}
+
+        @Override
+        public void start() {
+            // frames are handed over as soon as they are queued
+        }
+
+        @Override
+        public void stop() {
+            if (this.closed) {
+                return;
+            }
+            this.close();
+            InMemoryLink peer = this.peer;
+            this.transport.network.schedule(peer::closedByPeer, this.latencyMillis);
+        }
+
+        @Override
+        public void notifySend() {
+            if (this.closed) {
+                this.senderQueue.clear();
+                return;
+            }
+            InMemoryNetwork network = this.transport.network;
+            int frames = 0;
+            int bytes = 0;
+            SharedFrame frame;
+            while ((frame = this.senderQueue.poll(network.currentTimeMillis())) != null) {
+                Message message = frame.getMessage();
+                int length = frame.length();
+                frame.release();
+                EventLog.message(EventLog.Level.INFO, "SEND", this.neighborAddress, message);
+                network.recordSent(message);
+                InMemoryLink peer = this.peer;
+                network.schedule(() -> peer.deliver(message, length), this.latencyMillis);
+                frames++;
+                bytes += length;
+            }
+            if (frames > 0) {
+                this.transport.statistics.recordFramesSent(frames);
+                this.transport.statistics.recordWrite(bytes);
+            }
+        }
+
+        private void deliver(Message message, int length) {
+            if (this.closed || !this.transport.up) {
+                return;
+            }
+            this.transport.statistics.recordFramesReceived(1);
+            this.transport.statistics.recordRead(length);
+            EventLog.message(EventLog.Level.INFO, "RECV", this.neighborAddress, message);
+            this.transport.listener.messageReceived(message, this.neighborAddress);
+        }
+
+        private void closedByPeer() {
+            if (this.closed) {
+                return;
+            }
+            this.close();
+            if (this.transport.up) {
+                this.transport.listener.linkClosed(this);
+            }
+        }
+
+        private void close() {
+            this.closed = true;
+            this.senderQueue.clear();
+            this.transport.links.remove(this);
+        }
+    }
+
+    InMemoryTransport(InMemoryNetwork network, InetAddress localAddress, double x, double y) {
+        this.network = network;
+        this.localAddress = localAddress;
+        this.x = x;
+        this.y = y;
+        this.statistics = new LinkStatistics();
+        this.transferStatistics = new TransferStatistics();
+        this.schedulers = new ArrayList<>();
+        this.links = new LinkedHashSet<>();
+    }
+
+    /**
+     * @return the one-way latency to {@code other}, growing with their distance on the plane
+     */
+    long latencyTo(InMemoryTransport other) {
+        double distance = Math.hypot(this.x - other.x, this.y - other.y) / Math.sqrt(2);
+        return this.network.latencyMillis(distance);
+    }
+
+    boolean isUp() {return this.up;}
+
+    @Override
+    public InetAddress getLocalAddress() {return this.localAddress;}
+
+    @Override
+    public LinkStatistics getLinkStatistics() {return this.statistics;}
+
+    @Override
+    public TransferStatistics getTransferStatistics() {return this.transferStatistics;}
+
+    @Override
+    public long currentTimeMillis() {
+        return this.network.currentTimeMillis();
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler(String name) {
+        VirtualTimeScheduler scheduler = new VirtualTimeScheduler(this.network);
+        this.schedulers.add(scheduler);
+        return scheduler;
+    }
+
+    @Override
+    public void start(FileDirectory directory, Listener listener) {
+        this.listener = listener;
+        this.accepting = true;
+        this.up = true;
+    }
+
+    @Override
+    public void stop() {
+        this.accepting = false;
+    }
+
+    @Override
+    public void shutdown(Collection<Link> links) {
+        // queued hangups are already on their way
+        for (Link link : new ArrayList<>(links)) {
+            ((InMemoryLink) link).stop();
+        }
+        this.down();
+    }
+
+    /**
+     * Fails the node at once: no hangups are sent, its timers stop, and every neighbor sees its link drop.
+     */
+    void crash() {
+        this.accepting = false;
+        for (VirtualTimeScheduler scheduler : this.schedulers) {
+            scheduler.shutdownNow();
+        }
+        for (InMemoryLink link : new ArrayList<>(this.links)) {
+            link.stop();
+        }
+        this.down();
+    }
+
+    private void down() {
+        this.up = false;
+        this.network.remove(this);
+    }
+
+    @Override
+    public Link connect(InetAddress peerAddress) throws IOException {
+        InMemoryTransport remote = this.network.transportOf(peerAddress);
+        if (remote == null || !remote.accepting) {
+            throw new ConnectException("Connection refused");
+        }
+        long latencyMillis = this.latencyTo(remote);
+        InMemoryLink local = new InMemoryLink(this, peerAddress, this.localAddress, latencyMillis);
+        InMemoryLink accepted = new InMemoryLink(remote, this.localAddress, this.localAddress, latencyMillis);
+        local.peer = accepted;
+        accepted.peer = local;
+        this.network.schedule(() -> remote.accept(accepted), latencyMillis);
+        return local;
+    }
+
+    private void accept(InMemoryLink link) {
+        if (!this.accepting) {
+            link.stop();
+            return;
+        }
+        this.listener.linkAccepted(link);
+    }
+
+    @Override
+    public long probeRtt(InetAddress peerAddress) {
+        InMemoryTransport remote = this.network.transportOf(peerAddress);
+        if (remote == null || !remote.accepting) {
+            return NeighborSelector.UNREACHABLE;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(2 * this.latencyTo(remote));
+    }
+
+    @Override
+    public JoinReply join() {
+        return this.network.join(this.localAddress);
+    }
+
+    @Override
+    public List<InetAddress> sample() {
+        return this.network.sample(this.localAddress);
+    }
+
+    @Override
+    public void heartbeat() {
+        this.network.heartbeat(this.localAddress);
+    }
+
+    @Override
+    public void leave() {
+        this.network.leave(this.localAddress);
+    }
+}
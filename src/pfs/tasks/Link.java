@@ -0,0 +1,31 @@
+package pfs.tasks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A discovery link to one neighbor, as opened by a {@link Transport}.
+ * Messages are sent by adding frames to the link's {@link SendQueue} and calling {@link #notifySend}.
+ */
+interface Link {
+    InetAddress getNeighborAddress();
+
+    /**
+     * @return the address of the end that opened the link, as both ends see it
+     */
+    InetAddress getInitiatorAddress();
+
+    SendQueue getSenderQueue();
+
+    void start();
+
+    /**
+     * Closes the link from this end; the transport's listener is not told.
+     */
+    void stop() throws IOException;
+
+    /**
+     * Called after a frame has been added to the sender queue.
+     */
+    void notifySend();
+}
@@ -0,0 +1,88 @@
+package pfs.tasks;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Frame, byte and syscall counts of all discovery links of a node, in both directions.
+ * Frames per write shows how well the senders batch; the drop counts show how much load
+ * the send queues shed.
+ */
+public class LinkStatistics {
+    private final LongAdder framesSent;
+    private final LongAdder bytesSent;
+    private final LongAdder writes;
+    private final LongAdder framesReceived;
+    private final LongAdder bytesReceived;
+    private final LongAdder reads;
+    private final LongAdder droppedExpired;
+    private final LongAdder droppedOverflow;
+
+    LinkStatistics() {
+        this.framesSent = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.writes = new LongAdder();
+        this.framesReceived = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.reads = new LongAdder();
+        this.droppedExpired = new LongAdder();
+        this.droppedOverflow = new LongAdder();
+    }
+
+    void recordFramesSent(int frames) {
+        this.framesSent.add(frames);
+    }
+
+    void recordWrite(int bytes) {
+        this.bytesSent.add(bytes);
+        this.writes.increment();
+    }
+
+    void recordFramesReceived(int frames) {
+        this.framesReceived.add(frames);
+    }
+
+    void recordRead(int bytes) {
+        this.bytesReceived.add(bytes);
+        this.reads.increment();
+    }
+
+    void recordDroppedExpired() {
+        this.droppedExpired.increment();
+    }
+
+    void recordDroppedOverflow() {
+        this.droppedOverflow.increment();
+    }
+
+    public long getFramesSent() {return this.framesSent.sum();}
+
+    public long getBytesSent() {return this.bytesSent.sum();}
+
+    public long getWrites() {return this.writes.sum();}
+
+    public long getFramesReceived() {return this.framesReceived.sum();}
+
+    public long getBytesReceived() {return this.bytesReceived.sum();}
+
+    public long getReads() {return this.reads.sum();}
+
+    /**
+     * @return messages that expired while waiting in a send queue
+     */
+    public long getDroppedExpired() {return this.droppedExpired.sum();}
+
+    /**
+     * @return messages shed because their send queue was full
+     */
+    public long getDroppedOverflow() {return this.droppedOverflow.sum();}
+
+    @Override
+    public String toString() {
+        long writeCount = this.getWrites();
+        long readCount = this.getReads();
+        return String.format("sent %d frames, %d bytes in %d writes (%.1f frames/write); received %d frames, %d bytes in %d reads (%.1f frames/read); dropped %d expired, %d overflow",
+                this.getFramesSent(), this.getBytesSent(), writeCount, writeCount == 0 ? 0.0 : (double) this.getFramesSent() / writeCount,
+                this.getFramesReceived(), this.getBytesReceived(), readCount, readCount == 0 ? 0.0 : (double) this.getFramesReceived() / readCount,
+                this.getDroppedExpired(), this.getDroppedOverflow());
+    }
+}
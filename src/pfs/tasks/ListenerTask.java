@@ -1,16 +1,25 @@
 package pfs.tasks;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.CountDownLatch;
 
 public abstract class ListenerTask implements Runnable {
     private volatile ServerSocket serverSocket;
+    private final InetAddress bindAddress; // null for every interface
     private final int port;
     private final CountDownLatch readyLatch;
 
     public ListenerTask(int port) {
+        this(null, port);
+    }
+
+    public ListenerTask(InetAddress bindAddress, int port) {
+        this.bindAddress = bindAddress;
         this.port = port;
         this.readyLatch = new CountDownLatch(1);
     }
@@ -21,8 +30,10 @@ public abstract class ListenerTask implements Runnable {
 
     @Override
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(this.port)) {
-            this.serverSocket = serverSocket;
+        // bind through a channel so accepted sockets expose a SocketChannel for zero-copy writes
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(this.bindAddress, this.port));
+            this.serverSocket = serverChannel.socket();
             this.readyLatch.countDown();
             while (!Thread.interrupted()) {
                 Socket socket = this.serverSocket.accept();
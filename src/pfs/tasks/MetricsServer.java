@@ -0,0 +1,45 @@
+package pfs.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a node's metrics as plain text, one {@code name value} line each, to any request on its
+ * port, such as {@code curl http://localhost:<port>/}. It answers on the accepting thread, as
+ * scrapes are rare and a snapshot is cheap.
+ */
+class MetricsServer extends ListenerTask {
+    private final NodeMetrics metrics;
+
+    MetricsServer(NodeMetrics metrics, InetAddress bindAddress, int port) {
+        super(bindAddress, port);
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void handleConnection(Socket socket) throws IOException {
+        try (Socket client = socket) {
+            client.setSoTimeout(200);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            try {
+                // skip the request up to its blank line; a bare connection without one is answered too
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                }
+            } catch (SocketTimeoutException ignored) {
+            }
+            byte[] body = this.metrics.format().getBytes(StandardCharsets.US_ASCII);
+            OutputStream out = client.getOutputStream();
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=us-ascii\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package pfs.tasks;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the links of a node from measured round-trip times.
+ * Below {@code minDegree} neighbors the node links to the fastest candidates and above
+ * {@code maxDegree} it drops the slowest neighbors. Within the range it adds a candidate that is
+ * faster than its slowest neighbor while there is room, and once full swaps the slowest neighbor
+ * for a candidate at most {@code swapRatio} times as far away. Swaps happen one link per round,
+ * so the overlay changes gradually.
+ */
+class NeighborSelector {
+    static final long UNREACHABLE = Long.MAX_VALUE;
+
+    private final int minDegree;
+    private final int maxDegree;
+    private final double swapRatio;
+    private final ConcurrentMap<InetAddress, Long> rtts;
+
+    static class Plan {
+        final List<InetAddress> connect;
+        final List<InetAddress> drop;
+
+        private Plan(List<InetAddress> connect, List<InetAddress> drop) {
+            this.connect = connect;
+            this.drop = drop;
+        }
+
+        boolean isEmpty() {
+            return this.connect.isEmpty() && this.drop.isEmpty();
+        }
+    }
+
+    NeighborSelector(int minDegree, int maxDegree, double swapRatio) {
+        this.minDegree = Math.max(1, minDegree);
+        this.maxDegree = Math.max(this.minDegree, maxDegree);
+        this.swapRatio = swapRatio;
+        this.rtts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Folds a probe into the smoothed round-trip time of {@code peer}; a failed probe marks it unreachable.
+     */
+    void recordRtt(InetAddress peer, long rttNanos) {
+        if (rttNanos == UNREACHABLE) {
+            this.rtts.put(peer, UNREACHABLE);
+            return;
+        }
+        this.rtts.merge(peer, rttNanos, (Long previous, Long sample) ->
+                previous == UNREACHABLE ? sample : previous + (sample - previous) / 4);
+    }
+
+    /**
+     * @return the smoothed round-trip time of {@code peer} in nanoseconds, or {@link #UNREACHABLE} if unknown
+     */
+    long rttOf(InetAddress peer) {
+        return this.rtts.getOrDefault(peer, UNREACHABLE);
+    }
+
+    void forget(InetAddress peer) {
+        this.rtts.remove(peer);
+    }
+
+    /**
+     * @return the fastest of {@code peers}, or null if there are none
+     */
+    InetAddress fastest(Collection<InetAddress> peers) {
+        InetAddress fastest = null;
+        for (InetAddress peer : peers) {
+            if (fastest == null || this.rttOf(peer) < this.rttOf(fastest)) {
+                fastest = peer;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * @param neighbors  the current neighbors
+     * @param candidates probed peers that may become neighbors
+     * @return the links to open, then the links to close
+     */
+    Plan plan(Collection<InetAddress> neighbors, Collection<InetAddress> candidates) {
+        Comparator<InetAddress> byRtt = Comparator.comparingLong(this::rttOf);
+        List<InetAddress> fresh = new ArrayList<>();
+        for (InetAddress candidate : candidates) {
+            if (!neighbors.contains(candidate) && !fresh.contains(candidate) && this.rttOf(candidate) != UNREACHABLE) {
+                fresh.add(candidate);
+            }
+        }
+        fresh.sort(byRtt);
+        List<InetAddress> current = new ArrayList<>(neighbors);
+        current.sort(byRtt.reversed());
+        int degree = current.size();
+
+        if (degree < this.minDegree) {
+            return new Plan(new ArrayList<>(fresh.subList(0, Math.min(fresh.size(), this.minDegree - degree))), Collections.emptyList());
+        }
+        if (degree > this.maxDegree) {
+            return new Plan(Collections.emptyList(), new ArrayList<>(current.subList(0, degree - this.maxDegree)));
+        }
+        if (fresh.isEmpty()) {
+            return new Plan(Collections.emptyList(), Collections.emptyList());
+        }
+        InetAddress best = fresh.get(0);
+        InetAddress slowest = current.get(0);
+        long bestRtt = this.rttOf(best);
+        long slowestRtt = this.rttOf(slowest);
+        if (degree < this.maxDegree) {
+            if (bestRtt < slowestRtt) {
+                return new Plan(Collections.singletonList(best), Collections.emptyList());
+            }
+        } else if (slowestRtt == UNREACHABLE || bestRtt <= slowestRtt * this.swapRatio) {
+            return new Plan(Collections.singletonList(best), Collections.singletonList(slowest));
+        }
+        return new Plan(Collections.emptyList(), Collections.emptyList());
+    }
+}
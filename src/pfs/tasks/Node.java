@@ -1,109 +1,200 @@
 package pfs.tasks;
 
 import pfs.Constants;
+import pfs.ContentHash;
+import pfs.DirectoryWatcher;
+import pfs.EventLog;
 import pfs.FileDirectory;
 import pfs.messages.*;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.time.Duration;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.PriorityQueue;
-import java.util.Random;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class Node {
+    // well within what the routing table allows between sweeps
+    private static final long QUERY_EXPIRY_INTERVAL_MILLIS = 1000;
+
     private final FileDirectory directory;
-    private final String trackerName;
+    private final DirectoryWatcher directoryWatcher;
+    private final boolean watchDirectory;
+    private final Transport transport;
 
     private final InetAddress localAddress;
 
-    private final ConcurrentMap<InetAddress, PeerDiscoveryTransceiver> peerDiscoveryTable;
-    private final ConcurrentMap<InetAddress, BlockingQueue<Message>> senderQueueMap;
-
-    private final BlockingQueue<ReceivedMessage> receiverQueue;
-    private final BlockingQueue<TimestampedReplyMessage> replyQueue;
-
-    private final Map<QueryMessageIdentifier, QueryMessageInfo> queryInfoMap;
-    private final PriorityQueue<QueryMessageIdentifier> expirationQueue;
-
-    private int nextSequenceId;
+    private final ConcurrentMap<InetAddress, Link> peerDiscoveryTable;
+    private final ConcurrentMap<InetAddress, SendQueue> senderQueueMap;
+    // neighbor counts the neighbors last advertised
+    private final ConcurrentMap<InetAddress, Integer> neighborDegrees;
+
+    private final QueryRoutingTable queryRoutingTable;
+    private final QueryRegistry queryRegistry;
+    private final QueryResultCache queryResultCache;
+    private final RoutingSummaries routingSummaries;
+    private final ExecutorService discoveryServer;
+    private final ScheduledExecutorService queryScheduler;
+    private final ScheduledExecutorService heartbeatScheduler;
+    private final NeighborSelector neighborSelector;
+    private final ScheduledExecutorService neighborScheduler;
+    private final NodeMetrics metrics;
+    private MetricsServer metricsServer;
+
+    /**
+     * Starts a node known by {@link Constants#NODE_ADDRESS}, or by the host's address if unset.
+     */
+    public Node(String directory, String trackerName) throws IOException {
+        this(directory, trackerName, Constants.NODE_ADDRESS.isEmpty() ? null : InetAddress.getByName(Constants.NODE_ADDRESS));
+    }
 
-    private final ListenerTask discoveryListenerTask;
-    private final Thread discoveryServerThread;
-    private final ListenerTask transferServerTask;
+    /**
+     * @param localAddress the address to listen on and connect from, such as one of several
+     *                     loopback addresses to run many nodes on one host; null for the host's address
+     */
+    public Node(String directory, String trackerName, InetAddress localAddress) throws IOException {
+        this(new FileDirectory(directory), new TcpTransport(trackerName, localAddress), Constants.DIRECTORY_WATCH);
+    }
 
-    public Node(String directory, String trackerName) throws UnknownHostException {
-        this.directory = new FileDirectory(directory);
-        this.trackerName = trackerName;
-        this.localAddress = InetAddress.getLocalHost();
+    Node(FileDirectory directory, Transport transport, boolean watchDirectory) {
+        this.directory = directory;
+        this.directoryWatcher = new DirectoryWatcher(this.directory);
+        this.watchDirectory = watchDirectory;
+        this.transport = transport;
+        this.localAddress = transport.getLocalAddress();
         this.peerDiscoveryTable = new ConcurrentHashMap<>();
         this.senderQueueMap = new ConcurrentHashMap<>();
-        this.receiverQueue = new LinkedBlockingQueue<>();
-        this.replyQueue = new LinkedBlockingQueue<>();
-        this.queryInfoMap = new HashMap<>();
-        this.expirationQueue = new PriorityQueue<>((QueryMessageIdentifier lhs, QueryMessageIdentifier rhs) -> {
-            long lhsExpiration = this.queryInfoMap.get(lhs).getExpiration();
-            long rhsExpiration = this.queryInfoMap.get(rhs).getExpiration();
-            return Long.compare(lhsExpiration, rhsExpiration);
-        });
-        this.nextSequenceId = 0;
-        this.discoveryListenerTask = new DiscoveryListener();
-        this.discoveryServerThread = new Thread(this::serveRequests);
-        this.discoveryServerThread.setName("discovery-server");
-        this.transferServerTask = new TransferServer();
+        this.neighborDegrees = new ConcurrentHashMap<>();
+        this.queryRoutingTable = new QueryRoutingTable();
+        this.queryRegistry = new QueryRegistry();
+        this.queryResultCache = new QueryResultCache(
+                Constants.QUERY_CACHE_CAPACITY, Constants.QUERY_CACHE_TTL_MILLIS, Constants.QUERY_CACHE_MAX_SOURCES);
+        this.routingSummaries = new RoutingSummaries(
+                Constants.ROUTING_SUMMARY_DEPTH, Constants.ROUTING_SUMMARY_BITS, Constants.ROUTING_SUMMARY_HASHES);
+        this.discoveryServer = transport.newScheduler("discovery-server");
+        this.queryScheduler = transport.newScheduler("query-scheduler");
+        this.heartbeatScheduler = transport.newScheduler("tracker-heartbeat");
+        this.neighborSelector = new NeighborSelector(
+                Constants.NEIGHBOR_MIN_DEGREE, Constants.NEIGHBOR_MAX_DEGREE, Constants.NEIGHBOR_SWAP_RTT_RATIO);
+        this.neighborScheduler = transport.newScheduler("neighbor-maintenance");
+        this.metrics = new NodeMetrics(this.localAddress, this.senderQueueMap, transport.getLinkStatistics(), transport.getTransferStatistics());
     }
 
     public void start() {
-        Thread discoveryListenerThread = new Thread(discoveryListenerTask);
-        discoveryListenerThread.setName("discovery-listener");
-        discoveryListenerThread.start();
         try {
-            this.discoveryListenerTask.waitForReady();
-        } catch (InterruptedException e) {
+            this.transport.start(this.directory, new LinkListener());
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Thread transferServerThread = new Thread(this.transferServerTask);
-        transferServerThread.setName("transfer-server");
-        transferServerThread.start();
-        try {
-            this.transferServerTask.waitForReady();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        if (this.watchDirectory) {
+            try {
+                this.directoryWatcher.start();
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.WARN, "could not watch data directory, new files need a restart: " + e.getMessage());
+            }
+        }
+        if (Constants.METRICS_JMX) {
+            this.metrics.registerMBean();
+        }
+        if (Constants.METRICS_PORT > 0) {
+            this.startMetricsServer();
+        }
+        this.rebalanceNeighbors(Collections.emptyList(), this.probeCandidates(this.joinNetwork(), Collections.emptyList()));
+        this.queryScheduler.scheduleAtFixedRate(() -> this.queryRoutingTable.advance(this.transport.currentTimeMillis()),
+                QUERY_EXPIRY_INTERVAL_MILLIS, QUERY_EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.neighborScheduler.scheduleWithFixedDelay(this::maintainNeighbors,
+                Constants.NEIGHBOR_MAINTENANCE_MILLIS, Constants.NEIGHBOR_MAINTENANCE_MILLIS, TimeUnit.MILLISECONDS);
+        if (Constants.ROUTING_SUMMARIES) {
+            this.queryScheduler.scheduleWithFixedDelay(this::publishRoutingSummaries,
+                    0, Constants.ROUTING_SUMMARY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         }
-        this.connectToPeer(this.getRandomPeer());
-        this.discoveryServerThread.start();
     }
 
     public void stop() throws IOException, InterruptedException {
+        // no heartbeat may renew the lease after the leave notice
+        this.heartbeatScheduler.shutdownNow();
+        this.neighborScheduler.shutdownNow();
         this.notifyLeave();
-        this.discoveryListenerTask.stop();
-        this.transferServerTask.stop();
-        this.discoveryServerThread.interrupt();
+        this.transport.stop();
+        this.discoveryServer.shutdownNow();
+        this.queryScheduler.shutdownNow();
         this.handoffNeighbors();
-        Thread.sleep(500);
-        for (PeerDiscoveryTransceiver transceiver : this.peerDiscoveryTable.values()) {
-            transceiver.stop();
+        this.transport.shutdown(this.peerDiscoveryTable.values());
+        this.directoryWatcher.stop();
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+        }
+        this.metrics.unregisterMBean();
+        try {
+            this.directory.saveSnapshot();
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, "could not save directory snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics on the node's own address if that is a loopback address, otherwise on the
+     * host's loopback address, so they can only be read locally.
+     */
+    private void startMetricsServer() {
+        InetAddress bindAddress = this.localAddress.isLoopbackAddress() ? this.localAddress : InetAddress.getLoopbackAddress();
+        this.metricsServer = new MetricsServer(this.metrics, bindAddress, Constants.METRICS_PORT);
+        Thread thread = new Thread(this.metricsServer);
+        thread.setName("metrics-server");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            this.metricsServer.waitForReady();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private void handoffNeighbors() {
-        Random random = new Random();
-        InetAddress[] neighbors = this.senderQueueMap.keySet().toArray(new InetAddress[0]);
-        int index = random.nextInt(neighbors.length);
-        InetAddress handoffAddress = neighbors[index];
-        HangupMessage hangupMessage = new HangupMessage();
-        hangupMessage.handoffAddress = handoffAddress;
-        for (BlockingQueue<Message> senderQueue : this.senderQueueMap.values()) {
-            senderQueue.add(hangupMessage);
+        List<InetAddress> neighbors = new ArrayList<>(this.senderQueueMap.keySet());
+        InetAddress handoffAddress = this.handoffTarget(neighbors);
+        if (handoffAddress == null) {
+            return;
         }
+        this.sendToAll(neighbors, new HangupMessage(handoffAddress));
+    }
+    /**
+     * Sends every neighbor the summary of what lies behind this node, if it changed since the last one.
+     */
+    private void publishRoutingSummaries() {
+        this.routingSummaries.refreshLocal(this.directory);
+        for (InetAddress neighbor : this.senderQueueMap.keySet()) {
+            RoutingSummaryMessage summaryMessage = this.routingSummaries.summaryFor(neighbor);
+            if (summaryMessage != null) {
+                this.sendTo(neighbor, summaryMessage);
+            }
+        }
+    }
+
+    public LinkStatistics getLinkStatistics() {return this.transport.getLinkStatistics();}
+
+    public NodeMetrics getMetrics() {return this.metrics;}
+
+    public InetAddress getLocalAddress() {return this.localAddress;}
+
+    /**
+     * @return the neighbors messages are currently sent to
+     */
+    public List<InetAddress> getNeighbors() {
+        return new ArrayList<>(this.senderQueueMap.keySet());
+    }
+
+    public FileDirectory.FileEntry getLocalFile(String fileName) {
+        return this.directory.searchByFileName(fileName);
     }
 
     public SearchResult queryFileByKeyword(String keyword) {
@@ -115,311 +206,631 @@ public class Node {
     }
 
     public SearchResult queryFile(boolean isKeywordSearch, String filter) {
-        DiscoveryQueryMessage queryMessage = new DiscoveryQueryMessage();
-        queryMessage.initiator = this.localAddress;
-        queryMessage.isKeywordSearch = isKeywordSearch;
-        queryMessage.filter = filter;
-
-        for (int hopCount = 1; hopCount <= 16; hopCount *= 2) {
-            queryMessage.hopCount = hopCount;
-            queryMessage.sequenceId = this.nextSequenceId;
-            this.nextSequenceId++;
-            Instant expirationTime = Instant.now().plusMillis(hopCount * 250L);
-            queryMessage.expiration = expirationTime.toEpochMilli();
-            this.receiverQueue.add(new ReceivedMessage(queryMessage, this.localAddress));
-            List<TimestampedReplyMessage> replies = this.collectResultsFor(queryMessage.sequenceId, expirationTime);
+        return this.queryFileAsync(isKeywordSearch, filter).join();
+    }
+
+    public CompletableFuture<SearchResult> queryFileAsync(boolean isKeywordSearch, String filter) {
+        return this.queryFileAsync(isKeywordSearch, filter, null);
+    }
+
+    /**
+     * Starts an expanding-ring search without blocking the caller.
+     * The future completes with the replies of the first round that found anything, or null if none did.
+     *
+     * @param replyListener optional callback invoked for each reply as it arrives
+     */
+    public CompletableFuture<SearchResult> queryFileAsync(boolean isKeywordSearch, String filter, Consumer<TimestampedReplyMessage> replyListener) {
+        QueryRegistry.PendingQuery query = new QueryRegistry.PendingQuery(isKeywordSearch, filter, replyListener);
+        long startMillis = this.transport.currentTimeMillis();
+        query.getResult().whenComplete((SearchResult result, Throwable error) ->
+                this.metrics.recordSearch(this.transport.currentTimeMillis() - startMillis, result == null ? 0 : result.getHopCount()));
+        this.startQueryRound(query, 1);
+        return query.getResult();
+    }
+
+    private void startQueryRound(QueryRegistry.PendingQuery query, int hopCount) {
+        long roundMillis = hopCount * 250L;
+        DiscoveryQueryMessage queryMessage = new DiscoveryQueryMessage(this.localAddress, this.queryRegistry.register(query),
+                this.transport.currentTimeMillis() + roundMillis, hopCount, query.isKeywordSearch(), query.getFilter());
+        this.receive(queryMessage, this.localAddress);
+
+        this.queryScheduler.schedule(() -> {
+            this.queryRegistry.unregister(queryMessage.sequenceId);
+            List<TimestampedReplyMessage> replies = query.drainReplies();
             if (!replies.isEmpty()) {
-                return new SearchResult(replies, hopCount);
+                query.getResult().complete(new SearchResult(replies, hopCount));
+            } else if (hopCount * 2 <= 16 && !query.getResult().isDone()) {
+                this.startQueryRound(query, hopCount * 2);
+            } else {
+                query.getResult().complete(null);
             }
-        }
+        }, roundMillis, TimeUnit.MILLISECONDS);
+    }
 
-        return null;
+    /**
+     * Hands a message to the discovery server thread, which handles every message in arrival order.
+     */
+    private void receive(Message message, InetAddress neighborAddress) {
+        this.metrics.incrementDiscoveryBacklog();
+        try {
+            this.discoveryServer.execute(() -> {
+                this.metrics.decrementDiscoveryBacklog();
+                this.handleMessage(message, neighborAddress);
+            });
+        } catch (RejectedExecutionException ignored) {
+            // stopping
+            this.metrics.decrementDiscoveryBacklog();
+        }
     }
 
-    private List<TimestampedReplyMessage> collectResultsFor(int sequenceId, Instant expirationTime) {
-        List<TimestampedReplyMessage> results = new ArrayList<>();
-        while (true) {
-            // check time left
-            Duration timeLeft = Duration.between(Instant.now(), expirationTime);
-            if (timeLeft.isNegative()) {
-                break;
+    private void handleMessage(Message message, InetAddress neighborAddress) {
+        if (message instanceof DiscoveryMessage) {
+            // ignore expired messages
+            if (((DiscoveryMessage) message).expiration < this.transport.currentTimeMillis()) {
+                this.metrics.record(NodeMetrics.Event.EXPIRED, message);
+                return;
+            }
+
+            // handle QUERY messages
+            if (message instanceof DiscoveryQueryMessage) {
+                this.handleQueryRequest((DiscoveryQueryMessage) message, neighborAddress);
             }
-            // wait for reply until expiration
-            TimestampedReplyMessage reply = null;
+
+            // handle REPLY messages
+            if (message instanceof DiscoveryReplyMessage) {
+                this.handleReplyRequest((DiscoveryReplyMessage) message);
+            }
+        } else if (message instanceof RoutingSummaryMessage) {
+            this.routingSummaries.update(neighborAddress, (RoutingSummaryMessage) message);
+        } else if (message instanceof DegreeMessage) {
+            if (this.senderQueueMap.containsKey(neighborAddress)) {
+                this.neighborDegrees.put(neighborAddress, ((DegreeMessage) message).degree);
+            }
+        } else if (message instanceof HangupMessage) {
+            // handle HANGUP messages
+            InetAddress handoffAddress = ((HangupMessage) message).handoffAddress;
+            Link link = this.peerDiscoveryTable.remove(neighborAddress);
             try {
-                reply = this.replyQueue.poll(timeLeft.toMillis(), TimeUnit.MILLISECONDS);
-            } catch (InterruptedException ignored) {
+                if (link != null) {
+                    link.stop();
+                }
+            } catch (IOException ignored) {
             }
-            // stop if nothing received
-            if (reply == null) {
-                break;
+            this.senderQueueMap.remove(neighborAddress);
+            this.queryResultCache.removeTerminator(neighborAddress);
+            this.routingSummaries.remove(neighborAddress);
+            this.neighborDegrees.remove(neighborAddress);
+            if (this.senderQueueMap.size() < Constants.NEIGHBOR_MAX_DEGREE) {
+                this.connectToPeer(handoffAddress);
+            }
+        }
+    }
+
+    private void handleQueryRequest(DiscoveryQueryMessage queryMessage, InetAddress neighborAddress) {
+        // record reverse path and expiry, ignoring duplicate messages
+        if (!this.queryRoutingTable.putIfAbsent(queryMessage.initiator, queryMessage.sequenceId, queryMessage.expiration, neighborAddress,
+                this.transport.currentTimeMillis())) {
+            this.metrics.record(NodeMetrics.Event.DUPLICATE, queryMessage);
+            return;
+        }
+
+        // attempt to fulfill query, answering with every local match in one reply
+        List<FileDirectory.FileEntry> fileEntries = this.directory.search(
+                queryMessage.isKeywordSearch, queryMessage.filter, Constants.SEARCH_MAX_MATCHES);
+        if (!fileEntries.isEmpty()) {
+            List<DiscoveryReplyMessage.Match> matches = new ArrayList<>();
+            for (FileDirectory.FileEntry fileEntry : fileEntries) {
+                ContentHash contentHash = fileEntry.getContentHash();
+                matches.add(new DiscoveryReplyMessage.Match(fileEntry.keyword, fileEntry.fileName,
+                        contentHash == null ? new byte[0] : contentHash.getRoot()));
+            }
+            this.sendReply(queryMessage, neighborAddress, this.localAddress, matches, false);
+            return;
+        }
+
+        // answer from replies that recently passed through this node, and keep looking unless the cache is full
+        Map<InetAddress, List<DiscoveryReplyMessage.Match>> cachedMatches = this.queryResultCache.get(
+                queryMessage.isKeywordSearch, queryMessage.filter, this.transport.currentTimeMillis());
+        int cachedSources = 0;
+        for (Map.Entry<InetAddress, List<DiscoveryReplyMessage.Match>> entry : cachedMatches.entrySet()) {
+            this.sendReply(queryMessage, neighborAddress, entry.getKey(), entry.getValue(), true);
+            cachedSources += entry.getValue().size();
+        }
+        if (cachedSources < Constants.QUERY_CACHE_MAX_SOURCES && queryMessage.hopCount > 0) {
+            // forward message if hops are available, encoding it once for all neighbors
+            DiscoveryQueryMessage forwardedMessage = queryMessage.forwarded();
+            List<InetAddress> targets = new ArrayList<>();
+            for (InetAddress senderAddress : this.senderQueueMap.keySet()) {
+                // do not resend to neighbor that sent query
+                if (neighborAddress.equals(senderAddress)) {
+                    continue;
+                }
+                // skip neighbors whose summary rules out a match within the remaining hops
+                if (Constants.ROUTING_SUMMARIES && !this.routingSummaries.mightReach(
+                        senderAddress, forwardedMessage.isKeywordSearch, forwardedMessage.filter, forwardedMessage.hopCount)) {
+                    continue;
+                }
+
+                targets.add(senderAddress);
             }
-            if (reply.getReplyMessage().sequenceId == sequenceId) {
-                results.add(reply);
+            if (!this.localAddress.equals(neighborAddress)) {
+                this.metrics.record(NodeMetrics.Event.FORWARDED, forwardedMessage, targets.size());
             }
+            this.sendToAll(targets, forwardedMessage);
         }
+    }
+
+    private void sendReply(DiscoveryQueryMessage queryMessage, InetAddress neighborAddress, InetAddress terminator, List<DiscoveryReplyMessage.Match> matches, boolean cached) {
+        DiscoveryReplyMessage replyMessage = new DiscoveryReplyMessage(queryMessage, terminator, matches, cached);
 
-        return results;
+        if (this.localAddress.equals(neighborAddress)) {
+            this.deliverReply(replyMessage);
+        } else {
+            this.sendTo(neighborAddress, replyMessage);
+        }
     }
 
-    private void serveRequests() {
-        while (!Thread.interrupted()) {
-            // clear expired messages
-            while (!this.expirationQueue.isEmpty()) {
-                QueryMessageIdentifier messageId = this.expirationQueue.peek();
-                if (this.queryInfoMap.get(messageId).isExpired()) {
-                    this.queryInfoMap.remove(messageId);
-                    this.expirationQueue.poll();
-                } else {
-                    break;
-                }
+    private void handleReplyRequest(DiscoveryReplyMessage replyMessage) {
+        // replies answered from another cache would restart the time to live of entries that may be stale
+        if (!replyMessage.cached && !this.localAddress.equals(replyMessage.terminator)) {
+            long now = this.transport.currentTimeMillis();
+            for (DiscoveryReplyMessage.Match match : replyMessage.matches) {
+                this.queryResultCache.put(replyMessage.terminator, match, now);
             }
-            try {
-                ReceivedMessage receivedMessage = this.receiverQueue.take();
-                Message message = receivedMessage.getMessage();
-
-                if (message instanceof DiscoveryMessage) {
-                    // ignore expired messages
-                    Instant expirationTime = Instant.ofEpochMilli(((DiscoveryMessage) message).expiration);
-                    if (Instant.now().isAfter(expirationTime)) {
-                        continue;
-                    }
+        }
 
-                    // handle QUERY messages
-                    if (message instanceof DiscoveryQueryMessage) {
-                        this.handleQueryRequest((DiscoveryQueryMessage) message, receivedMessage.getNeighborAddress());
-                    }
+        // hand replies intended for this node to the search waiting on them
+        if (this.localAddress.equals(replyMessage.initiator)) {
+            this.deliverReply(replyMessage);
+            return;
+        }
 
-                    // handle REPLY messages
-                    if (message instanceof DiscoveryReplyMessage) {
-                        this.handleReplyRequest((DiscoveryReplyMessage) message);
-                    }
-                } else if (message instanceof HangupMessage) {
-                    // handle HANGUP messages
-                    InetAddress handoffAddress = ((HangupMessage) message).handoffAddress;
-                    PeerDiscoveryTransceiver transceiver = this.peerDiscoveryTable.remove(receivedMessage.getNeighborAddress());
-                    try {
-                        if (transceiver != null) {
-                            transceiver.stop();
-                        }
-                    } catch (IOException ignored) {
-                    }
-                    this.senderQueueMap.remove(receivedMessage.getNeighborAddress());
-                    if (!this.localAddress.equals(handoffAddress)) {
-                        this.connectToPeer(handoffAddress);
-                    }
-                }
-            } catch (InterruptedException e) {
+        InetAddress neighborAddress = this.queryRoutingTable.getNeighbor(replyMessage.initiator, replyMessage.sequenceId,
+                this.transport.currentTimeMillis());
+        if (neighborAddress != null) {
+            this.metrics.record(NodeMetrics.Event.FORWARDED, replyMessage);
+            this.sendTo(neighborAddress, replyMessage);
+        }
+    }
+
+    private void deliverReply(DiscoveryReplyMessage replyMessage) {
+        // searches see one entry per (terminator, file) pair
+        for (DiscoveryReplyMessage.Match match : replyMessage.matches) {
+            this.queryRegistry.deliver(new TimestampedReplyMessage(replyMessage, match));
+        }
+    }
+
+    private void sendTo(InetAddress neighborAddress, Message message) {
+        this.sendTo(neighborAddress, new SharedFrame(message, 1));
+    }
+
+    /**
+     * Sends one frame, encoded once, to every neighbor in {@code neighborAddresses}.
+     */
+    private void sendToAll(List<InetAddress> neighborAddresses, Message message) {
+        if (neighborAddresses.isEmpty()) {
+            return;
+        }
+        SharedFrame frame = new SharedFrame(message, neighborAddresses.size());
+        for (InetAddress neighborAddress : neighborAddresses) {
+            this.sendTo(neighborAddress, frame);
+        }
+    }
+
+    /**
+     * Hands one reference to {@code frame} to the neighbor's send queue.
+     */
+    private void sendTo(InetAddress neighborAddress, SharedFrame frame) {
+        SendQueue senderQueue = this.senderQueueMap.get(neighborAddress);
+        Link link = this.peerDiscoveryTable.get(neighborAddress);
+        if (senderQueue == null || link == null) {
+            frame.release();
+            return;
+        }
+        this.metrics.record(NodeMetrics.Event.SENT, frame.getMessage());
+        senderQueue.add(frame);
+        link.notifySend();
+    }
+
+    private void addLink(Link link) {
+        InetAddress neighborAddress = link.getNeighborAddress();
+        Link existing;
+        while ((existing = this.peerDiscoveryTable.putIfAbsent(neighborAddress, link)) != null) {
+            // both ends connected at once, or a handoff pointed at an existing neighbor:
+            // both ends keep the link opened by the lower address and stop the same other one
+            if (Arrays.compareUnsigned(link.getInitiatorAddress().getAddress(), existing.getInitiatorAddress().getAddress()) >= 0) {
+                stopQuietly(link);
                 return;
             }
+            if (this.peerDiscoveryTable.replace(neighborAddress, existing, link)) {
+                stopQuietly(existing);
+                break;
+            }
         }
+        this.routingSummaries.remove(neighborAddress);
+        this.neighborDegrees.remove(neighborAddress);
+        this.senderQueueMap.put(neighborAddress, link.getSenderQueue());
+        link.start();
+        EventLog.addresses(EventLog.Level.INFO, "NEIGHBORS:", this.peerDiscoveryTable.keySet());
     }
 
-
-    private void handleQueryRequest(DiscoveryQueryMessage queryMessage, InetAddress neighborAddress) {
-        QueryMessageIdentifier messageId = new QueryMessageIdentifier(queryMessage.initiator, queryMessage.sequenceId);
-        if (this.queryInfoMap.containsKey(messageId)) {
-            // ignore duplicate messages
+    /**
+     * Takes a link a peer opened. Once this node is at its maximum degree it hangs up on the new peer
+     * right away, handing it off to a neighbor with room, or just closes the link if no neighbor has room.
+     */
+    private void acceptLink(Link link) {
+        InetAddress neighborAddress = link.getNeighborAddress();
+        if (this.senderQueueMap.size() < Constants.NEIGHBOR_MAX_DEGREE || this.peerDiscoveryTable.containsKey(neighborAddress)) {
+            this.addLink(link);
+            return;
+        }
+        EventLog.address(EventLog.Level.INFO, "REFUSE FROM:", neighborAddress);
+        boolean handoff = false;
+        for (InetAddress neighbor : this.senderQueueMap.keySet()) {
+            handoff |= this.hasRoom(neighbor);
+        }
+        if (!handoff) {
+            stopQuietly(link);
             return;
         }
+        this.addLink(link);
+        this.dropNeighbor(neighborAddress);
+    }
 
-        // insert message data and expiry
-        QueryMessageInfo messageInfo = new QueryMessageInfo(queryMessage.expiration, neighborAddress);
-        this.queryInfoMap.put(messageId, messageInfo);
-        this.expirationQueue.add(messageId);
+    private static void stopQuietly(Link link) {
+        try {
+            link.stop();
+        } catch (IOException ignored) {
+        }
+    }
 
-        // attempt to fulfill query
-        FileDirectory.FileEntry fileEntry;
-        if (queryMessage.isKeywordSearch) {
-            fileEntry = this.directory.searchByKeyword(queryMessage.filter);
-        } else {
-            fileEntry = this.directory.searchByFileName(queryMessage.filter);
+    /**
+     * Forgets a link that failed without a hangup, so maintenance can replace it.
+     */
+    private void linkClosed(Link link) {
+        InetAddress neighborAddress = link.getNeighborAddress();
+        if (this.peerDiscoveryTable.remove(neighborAddress, link)) {
+            this.senderQueueMap.remove(neighborAddress, link.getSenderQueue());
+            this.queryResultCache.removeTerminator(neighborAddress);
+            this.routingSummaries.remove(neighborAddress);
+            this.neighborDegrees.remove(neighborAddress);
+            EventLog.address(EventLog.Level.INFO, "LINK LOST:", neighborAddress);
         }
+    }
 
-        if (fileEntry != null) {
-            // send reply if file found
-            DiscoveryReplyMessage replyMessage = new DiscoveryReplyMessage();
-            replyMessage.initiator = queryMessage.initiator;
-            replyMessage.sequenceId = queryMessage.sequenceId;
-            replyMessage.expiration = queryMessage.expiration;
-            replyMessage.terminator = this.localAddress;
-            replyMessage.keyword = fileEntry.keyword;
-            replyMessage.fileName = fileEntry.fileName;
+    /**
+     * @return true if a link to {@code peerAddress} was opened
+     */
+    private boolean connectToPeer(InetAddress peerAddress) {
+        if (peerAddress == null || this.localAddress.equals(peerAddress) || this.peerDiscoveryTable.containsKey(peerAddress)) {
+            return false;
+        }
+        Link link;
+        try {
+            link = this.transport.connect(peerAddress);
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, "could not connect to " + peerAddress.getHostAddress() + ": " + e.getMessage());
+            return false;
+        }
+        EventLog.address(EventLog.Level.INFO, "CONNECT TO:", peerAddress);
+        this.addLink(link);
+        return true;
+    }
 
-            if (this.localAddress.equals(neighborAddress)) {
-                this.replyQueue.add(new TimestampedReplyMessage(replyMessage));
-            } else {
-                this.senderQueueMap.get(neighborAddress).add(replyMessage);
+    /**
+     * Probes up to {@link Constants#NEIGHBOR_PROBE_CANDIDATES} peers of {@code sample} that are not neighbors yet.
+     */
+    private List<InetAddress> probeCandidates(List<InetAddress> sample, Collection<InetAddress> neighbors) {
+        List<InetAddress> candidates = new ArrayList<>();
+        for (InetAddress peer : sample) {
+            if (candidates.size() == Constants.NEIGHBOR_PROBE_CANDIDATES) {
+                break;
             }
-        } else if (queryMessage.hopCount > 0) {
-            // forward message if hops are available
-            queryMessage.hopCount--;
-            for (Map.Entry<InetAddress, BlockingQueue<Message>> senderEntry : this.senderQueueMap.entrySet()) {
-                InetAddress senderAddress = senderEntry.getKey();
-                BlockingQueue<Message> senderQueue = senderEntry.getValue();
-
-                // do not resend to neighbor that sent query
-                if (neighborAddress.equals(senderAddress)) {
-                    continue;
-                }
+            if (!this.localAddress.equals(peer) && !neighbors.contains(peer)) {
+                this.neighborSelector.forget(peer);
+                this.neighborSelector.recordRtt(peer, this.transport.probeRtt(peer));
+                candidates.add(peer);
+            }
+        }
+        return candidates;
+    }
 
-                senderQueue.add(queryMessage);
+    /**
+     * Keeps the degree within range and trades slow links for faster ones.
+     */
+    private void maintainNeighbors() {
+        try {
+            List<InetAddress> neighbors = new ArrayList<>(this.senderQueueMap.keySet());
+            for (InetAddress neighbor : neighbors) {
+                this.neighborSelector.recordRtt(neighbor, this.transport.probeRtt(neighbor));
             }
+            this.rebalanceNeighbors(neighbors, this.probeCandidates(this.samplePeers(), neighbors));
+            this.advertiseDegree();
+        } catch (RuntimeException e) {
+            // keep the schedule alive
+            EventLog.text(EventLog.Level.WARN, "neighbor maintenance failed: " + e);
         }
     }
 
-    private void handleReplyRequest(DiscoveryReplyMessage replyMessage) {
-        // send replies intended for this node to reply queue
-        if (this.localAddress.equals(replyMessage.initiator)) {
-            this.replyQueue.add(new TimestampedReplyMessage(replyMessage));
+    private void rebalanceNeighbors(List<InetAddress> neighbors, List<InetAddress> candidates) {
+        NeighborSelector.Plan plan = this.neighborSelector.plan(neighbors, candidates);
+        if (plan.isEmpty()) {
+            return;
+        }
+        boolean connected = true;
+        for (InetAddress peer : plan.connect) {
+            connected &= this.connectToPeer(peer);
+        }
+        if (!connected && !plan.connect.isEmpty()) {
+            // a swap only drops the old link once the new one is up
             return;
         }
+        for (InetAddress neighbor : plan.drop) {
+            this.dropNeighbor(neighbor);
+        }
+        EventLog.addresses(EventLog.Level.INFO, "NEIGHBORS:", this.senderQueueMap.keySet());
+    }
 
-        QueryMessageIdentifier messageId = new QueryMessageIdentifier(replyMessage.initiator, replyMessage.sequenceId);
-        InetAddress neighborAddress = this.queryInfoMap.get(messageId).getNeighborAddress();
-        this.senderQueueMap.get(neighborAddress).add(replyMessage);
+    /**
+     * Tells every neighbor how many neighbors this node has, so they know whether to hand peers off to it.
+     */
+    private void advertiseDegree() {
+        List<InetAddress> neighbors = new ArrayList<>(this.senderQueueMap.keySet());
+        this.sendToAll(neighbors, new DegreeMessage(neighbors.size()));
     }
 
-    private void addLink(Socket socket) throws IOException {
-        BlockingQueue<Message> senderQueue = new LinkedBlockingQueue<>();
-        this.senderQueueMap.put(socket.getInetAddress(), senderQueue);
-        PeerDiscoveryTransceiver transceiver = new PeerDiscoveryTransceiver(socket, senderQueue, this.receiverQueue);
-        this.peerDiscoveryTable.put(socket.getInetAddress(), transceiver);
-        transceiver.start();
-        StringBuilder sb = new StringBuilder("NEIGHBORS:\n");
-        for (InetAddress peerAddress : this.peerDiscoveryTable.keySet()) {
-            sb.append(peerAddress.getCanonicalHostName()).append('\n');
+    /**
+     * @return the fastest of {@code neighbors} that last advertised room for another link, or the
+     * fastest of them all if none did; null if there are none
+     */
+    private InetAddress handoffTarget(List<InetAddress> neighbors) {
+        List<InetAddress> withRoom = new ArrayList<>();
+        for (InetAddress neighbor : neighbors) {
+            if (this.hasRoom(neighbor)) {
+                withRoom.add(neighbor);
+            }
         }
-        System.out.println(sb);
+        return this.neighborSelector.fastest(withRoom.isEmpty() ? neighbors : withRoom);
     }
 
-    private void connectToPeer(InetAddress peerAddress) {
-        if (peerAddress == null) {
+    /**
+     * @return true unless {@code neighbor} last advertised a full set of neighbors
+     */
+    private boolean hasRoom(InetAddress neighbor) {
+        Integer degree = this.neighborDegrees.get(neighbor);
+        return degree == null || degree < Constants.NEIGHBOR_MAX_DEGREE;
+    }
+
+    /**
+     * Hangs up on {@code neighbor}, handing it off to this node's fastest remaining neighbor with room
+     * for another link so the overlay stays connected. The link closes once the neighbor acts on the hangup.
+     */
+    private void dropNeighbor(InetAddress neighbor) {
+        List<InetAddress> remaining = new ArrayList<>(this.senderQueueMap.keySet());
+        remaining.remove(neighbor);
+        InetAddress handoffAddress = this.handoffTarget(remaining);
+        if (handoffAddress == null) {
             return;
         }
+        this.sendTo(neighbor, new HangupMessage(handoffAddress));
+        this.senderQueueMap.remove(neighbor);
+        this.queryResultCache.removeTerminator(neighbor);
+        this.routingSummaries.remove(neighbor);
+        this.neighborDegrees.remove(neighbor);
+        EventLog.address(EventLog.Level.INFO, "DROP:", neighbor);
+    }
+
+    private void notifyLeave() {
         try {
-            Socket discoverySocket = new Socket(peerAddress, Constants.DISCOVERY_PORT);
-            System.out.println("CONNECT TO: " + discoverySocket.getInetAddress().getCanonicalHostName());
-            this.addLink(discoverySocket);
+            this.transport.leave();
+            EventLog.text(EventLog.Level.INFO, "Notifying LEAVE");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void notifyLeave() {
-        try (
-                Socket trackerSocket = new Socket(this.trackerName, Constants.TRACKER_PORT);
-                DataOutputStream trackerOutput = new DataOutputStream(trackerSocket.getOutputStream())
-        ) {
-            trackerOutput.writeByte(1);
-            trackerOutput.flush();
-            System.out.println("Notifying LEAVE");
+    private void sendHeartbeat() {
+        try {
+            this.transport.heartbeat();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            EventLog.text(EventLog.Level.WARN, "tracker heartbeat failed: " + e.getMessage());
         }
     }
 
-    private InetAddress getRandomPeer() {
-        List<InetAddress> peers = new ArrayList<>();
-        try (
-                Socket trackerSocket = new Socket(this.trackerName, Constants.TRACKER_PORT);
-                DataInputStream trackerInput = new DataInputStream(trackerSocket.getInputStream());
-                DataOutputStream trackerOutput = new DataOutputStream(trackerSocket.getOutputStream())
-        ) {
-            trackerOutput.writeByte(0);
-            trackerOutput.flush();
-            int peersSize = trackerInput.readInt();
-            for (int i = 0; i < peersSize; i++) {
-                int peerAddressSize = trackerInput.readInt();
-                byte[] peerAddress = new byte[peerAddressSize];
-                trackerInput.readFully(peerAddress);
-                peers.add(InetAddress.getByAddress(peerAddress));
-            }
+    /**
+     * Joins the tracker and starts renewing the lease.
+     *
+     * @return a random sample of the live peers
+     */
+    private List<InetAddress> joinNetwork() {
+        Transport.JoinReply reply;
+        try {
+            reply = this.transport.join();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        Random random = new Random();
-        if (peers.isEmpty()) {
-            return null;
-        }
-        int index = random.nextInt(peers.size());
-        return peers.get(index);
-    }
-
-    public void transferFile(InetAddress target, String fileName, String keyword) throws IOException {
-        try (
-                Socket socket = new Socket(target, Constants.TRANSFER_PORT);
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream())
-        ) {
-            out.writeUTF(fileName);
-            out.flush();
-
-            long contentLength = in.readLong();
-            this.directory.createFile(fileName, keyword, contentLength);
-            try (OutputStream fileWriter = this.directory.newFileOutput(fileName)) {
-                byte[] buffer = new byte[4096];
-                while (contentLength > 0) {
-                    int bytesRead = in.read(buffer);
-                    fileWriter.write(buffer, 0, bytesRead);
-                    contentLength -= bytesRead;
-                }
-                System.out.println("Download complete!");
-            }
+        if (reply.leaseMillis > 0) {
+            // renew well before the lease runs out, so one lost heartbeat does not expire the node
+            long intervalMillis = Math.max(1, reply.leaseMillis / 3);
+            this.heartbeatScheduler.scheduleWithFixedDelay(this::sendHeartbeat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
         }
+        return reply.peers;
     }
 
-    private class DiscoveryListener extends ListenerTask {
-        public DiscoveryListener() {
-            super(Constants.DISCOVERY_PORT);
+    /**
+     * @return a fresh random sample of the live peers, or an empty list if the tracker cannot be asked
+     */
+    private List<InetAddress> samplePeers() {
+        try {
+            return this.transport.sample();
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, "tracker sample failed: " + e.getMessage());
+            return Collections.emptyList();
         }
+    }
 
-        @Override
-        protected void handleConnection(Socket socket) throws IOException {
-            System.out.println("CONNECT FROM: " + socket.getInetAddress().getCanonicalHostName());
-            Node.this.addLink(socket);
+    /**
+     * @return the replies offering the same content as {@code chosen}, one per terminator:
+     * matched by content hash when the terminators advertise one, otherwise by file name
+     */
+    public static List<TimestampedReplyMessage> sameContent(List<TimestampedReplyMessage> replies, TimestampedReplyMessage chosen) {
+        DiscoveryReplyMessage.Match chosenMatch = chosen.getMatch();
+        Map<InetAddress, TimestampedReplyMessage> sources = new LinkedHashMap<>();
+        sources.put(chosen.getReplyMessage().terminator, chosen);
+        for (TimestampedReplyMessage reply : replies) {
+            DiscoveryReplyMessage.Match match = reply.getMatch();
+            boolean same = chosenMatch.hasContentHash()
+                    ? Arrays.equals(match.contentHash, chosenMatch.contentHash)
+                    : !match.hasContentHash() && match.fileName.equals(chosenMatch.fileName);
+            if (same) {
+                sources.putIfAbsent(reply.getReplyMessage().terminator, reply);
+            }
         }
+        return new ArrayList<>(sources.values());
     }
 
-    private class TransferServer extends ListenerTask {
-        public TransferServer() {super(Constants.TRANSFER_PORT);}
+    /**
+     * Downloads the content offered by {@code replies}, saving it under the name and keyword of
+     * the first one. Every reply must offer the same content, see {@link #sameContent}.
+     */
+    public void transferFile(List<TimestampedReplyMessage> replies) throws IOException {
+        DiscoveryReplyMessage.Match match = replies.get(0).getMatch();
+        String fileName = match.fileName;
+        String keyword = match.keyword;
+        List<SwarmDownload.Source> sources = new ArrayList<>();
+        for (TimestampedReplyMessage reply : replies) {
+            sources.add(new SwarmDownload.Source(reply.getReplyMessage().terminator, reply.getMatch().fileName));
+        }
 
-        @Override
-        protected void handleConnection(Socket socket) {
-            Thread handlerThread = new Thread(() -> {
+        // identical content already shared here under another name: copy it instead of downloading
+        if (match.hasContentHash()) {
+            FileDirectory.FileEntry duplicate = this.directory.searchByContentHash(match.contentHash);
+            if (duplicate != null) {
+                if (!duplicate.fileName.equals(fileName)) {
+                    this.directory.copyFile(duplicate, fileName, keyword);
+                }
+                System.out.println("Download complete! (same content as local " + duplicate.fileName + ")");
+                return;
+            }
+        }
+
+        TransferStatistics statistics = this.transport.getTransferStatistics();
+        long startNanos = System.nanoTime();
+        long bytesDownloaded = 0;
+        statistics.recordDownloadStarted();
+        try {
+            bytesDownloaded = this.downloadFile(sources, match, fileName, keyword);
+        } finally {
+            statistics.recordDownloadFinished(bytesDownloaded, System.nanoTime() - startNanos);
+        }
+        System.out.println("Download complete!");
+    }
+
+    /**
+     * @return the bytes downloaded, not counting chunks kept from an interrupted attempt
+     */
+    private long downloadFile(List<SwarmDownload.Source> sources, DiscoveryReplyMessage.Match match, String fileName, String keyword) throws IOException {
+        long contentLength = -1;
+        for (int attempt = 0; contentLength < 0 && attempt < Constants.TRANSFER_MAX_BUSY_RETRIES; attempt++) {
+            boolean anyBusy = false;
+            for (SwarmDownload.Source source : sources) {
                 try {
-                    this.serveRequest(socket);
+                    contentLength = SwarmDownload.queryContentLength(source);
+                    break;
+                } catch (SwarmDownload.SourceBusyException e) {
+                    anyBusy = true;
                 } catch (IOException ignored) {
                 }
-            });
-            handlerThread.start();
-        }
-
-        private void serveRequest(Socket socket) throws IOException {
-            try (
-                    DataInputStream in = new DataInputStream(socket.getInputStream());
-                    DataOutputStream out = new DataOutputStream(socket.getOutputStream())
-            ) {
-                socket.setSoTimeout(200);
-                String fileName = in.readUTF();
-                FileDirectory.FileEntry entry = Node.this.directory.searchByFileName(fileName);
-                if (entry == null) {
-                    return;
-                }
+            }
+            if (contentLength >= 0 || !anyBusy) {
+                break;
+            }
+            try {
+                Thread.sleep(Constants.TRANSFER_RETRY_AFTER_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (contentLength < 0) {
+            throw new IOException("no source could serve " + fileName);
+        }
+        ContentHash expectedHash = match.hasContentHash() ? this.fetchContentHash(sources, match.contentHash, contentLength) : null;
+
+        // pick up where a previous attempt stopped if its progress bitmap still matches the partial file
+        FileDirectory.FileEntry entry = null;
+        long resumedBytes = 0;
+        try (DownloadProgress progress = DownloadProgress.open(this.directory.progressPath(fileName), contentLength, Constants.TRANSFER_CHUNK_SIZE)) {
+            if (progress.isResumed()) {
+                entry = this.directory.openPartialFile(fileName, keyword, contentLength);
+            }
+            if (entry == null) {
+                progress.reset();
+                entry = this.directory.createFile(fileName, keyword, contentLength);
+            } else {
+                System.out.format("Resuming download: %d chunks already present\n", progress.completedCount());
+                resumedBytes = Math.min(contentLength, (long) progress.completedCount() * Constants.TRANSFER_CHUNK_SIZE);
+            }
+            try (FileChannel fileChannel = this.directory.newFileChannel(fileName)) {
+                SwarmDownload download = new SwarmDownload(sources, fileChannel, progress, entry.headerLength, contentLength, expectedHash);
+                download.run();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            progress.delete();
+        }
+        if (expectedHash != null) {
+            this.directory.publishFile(entry, expectedHash);
+        } else {
+            this.directory.publishFile(entry);
+        }
+        return contentLength - resumedBytes;
+    }
 
-                long contentLength = entry.contentLength;
-                out.writeLong(contentLength);
-                try (InputStream fileReader = Node.this.directory.newFileInput(fileName)) {
-                    byte[] buffer = new byte[4096];
-                    while (contentLength > 0) {
-                        int bytesRead = fileReader.read(buffer);
-                        out.write(buffer, 0, bytesRead);
-                        contentLength -= bytesRead;
+    /**
+     * @return chunk hashes from the first source whose hash tree matches the advertised root
+     */
+    private ContentHash fetchContentHash(List<SwarmDownload.Source> sources, byte[] root, long contentLength) throws IOException {
+        for (int attempt = 0; attempt < Constants.TRANSFER_MAX_BUSY_RETRIES; attempt++) {
+            boolean anyBusy = false;
+            for (SwarmDownload.Source source : sources) {
+                try {
+                    ContentHash contentHash = SwarmDownload.queryContentHash(source, contentLength);
+                    if (Arrays.equals(contentHash.getRoot(), root)) {
+                        return contentHash;
                     }
+                } catch (SwarmDownload.SourceBusyException e) {
+                    anyBusy = true;
+                } catch (IOException ignored) {
                 }
-            } finally {
-                socket.close();
             }
+            if (!anyBusy) {
+                break;
+            }
+            try {
+                Thread.sleep(Constants.TRANSFER_RETRY_AFTER_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        throw new IOException("no source could prove the content hash of " + ContentHash.toHex(root));
+    }
+
+    private class LinkListener implements Transport.Listener {
+        @Override
+        public void linkAccepted(Link link) {
+            EventLog.address(EventLog.Level.INFO, "CONNECT FROM:", link.getNeighborAddress());
+            Node.this.acceptLink(link);
+        }
+
+        @Override
+        public void messageReceived(Message message, InetAddress neighborAddress) {
+            Node.this.metrics.record(NodeMetrics.Event.RECEIVED, message);
+            Node.this.receive(message, neighborAddress);
+        }
+
+        @Override
+        public void linkClosed(Link link) {
+            Node.this.linkClosed(link);
         }
     }
 
@@ -437,72 +848,21 @@ public class Node {
         public int getHopCount() {return hopCount;}
     }
 
-    public static class ReceivedMessage {
-        private final Message message;
-        private final InetAddress neighbor;
-
-        public ReceivedMessage(Message message, InetAddress neighbor) {
-            this.message = message;
-            this.neighbor = neighbor;
-        }
-
-        public Message getMessage() {return this.message;}
-
-        public InetAddress getNeighborAddress() {return this.neighbor;}
-    }
-
     public static class TimestampedReplyMessage {
         private final DiscoveryReplyMessage replyMessage;
+        private final DiscoveryReplyMessage.Match match;
         private final Instant arrivalTime;
 
-        public TimestampedReplyMessage(DiscoveryReplyMessage replyMessage) {
+        public TimestampedReplyMessage(DiscoveryReplyMessage replyMessage, DiscoveryReplyMessage.Match match) {
             this.replyMessage = replyMessage;
+            this.match = match;
             this.arrivalTime = Instant.now();
         }
 
         public DiscoveryReplyMessage getReplyMessage() {return this.replyMessage;}
 
-        public Instant getArrivalTime() {return this.arrivalTime;}
-    }
-
-    private static class QueryMessageIdentifier {
-        private final InetAddress initiatorAddress;
-        private final int sequenceId;
-
-        public QueryMessageIdentifier(InetAddress initiatorAddress, int sequenceId) {
-            this.initiatorAddress = initiatorAddress;
-            this.sequenceId = sequenceId;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || this.getClass() != o.getClass()) return false;
-            QueryMessageIdentifier that = (QueryMessageIdentifier) o;
-            return this.sequenceId == that.sequenceId && Objects.equals(this.initiatorAddress, that.initiatorAddress);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(initiatorAddress, sequenceId);
-        }
-    }
+        public DiscoveryReplyMessage.Match getMatch() {return this.match;}
 
-    private static class QueryMessageInfo {
-        private final long expiration;
-        private final InetAddress neighborAddress;
-
-        public QueryMessageInfo(long expiration, InetAddress neighborAddress) {
-            this.expiration = expiration;
-            this.neighborAddress = neighborAddress;
-        }
-
-        public boolean isExpired() {
-            return Instant.now().isAfter(Instant.ofEpochMilli(this.expiration));
-        }
-
-        public long getExpiration() {return this.expiration;}
-
-        public InetAddress getNeighborAddress() {return this.neighborAddress;}
+        public Instant getArrivalTime() {return this.arrivalTime;}
     }
 }
@@ -0,0 +1,237 @@
+package pfs.tasks;
+
+import pfs.EventLog;
+import pfs.messages.DiscoveryQueryMessage;
+import pfs.messages.DiscoveryReplyMessage;
+import pfs.messages.HangupMessage;
+import pfs.messages.Message;
+import pfs.messages.RoutingSummaryMessage;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and queue gauges of one node, cheap enough to update on every message.
+ * Every value has a dotted name, such as {@code messages.forwarded.query}; {@link #snapshot()}
+ * reads them all, for the plain-text {@link MetricsServer} and for JMX, where the node is
+ * registered as {@code pfs:type=Node,address=<address>} with one attribute per value.
+ */
+public class NodeMetrics implements DynamicMBean {
+    enum Event {SENT, RECEIVED, FORWARDED, DUPLICATE, EXPIRED}
+
+    // the messages a node handles; hellos never leave the links
+    enum Kind {QUERY, REPLY, SUMMARY, HANGUP}
+
+    private final LongAdder[][] messages; // by event, then kind
+    private final Histogram searchMillis;
+    private final Histogram searchHops;
+    private final LongAdder searchesFailed;
+    private final LongAdder discoveryBacklog;
+    private final Map<InetAddress, SendQueue> sendQueues;
+    private final LinkStatistics linkStatistics;
+    private final TransferStatistics transferStatistics;
+    private final ObjectName objectName;
+    private final MBeanInfo mBeanInfo;
+
+    NodeMetrics(InetAddress address, Map<InetAddress, SendQueue> sendQueues, LinkStatistics linkStatistics, TransferStatistics transferStatistics) {
+        this.messages = new LongAdder[Event.values().length][Kind.values().length];
+        for (LongAdder[] counters : this.messages) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new LongAdder();
+            }
+        }
+        this.searchMillis = new Histogram();
+        this.searchHops = new Histogram();
+        this.searchesFailed = new LongAdder();
+        this.discoveryBacklog = new LongAdder();
+        this.sendQueues = sendQueues;
+        this.linkStatistics = linkStatistics;
+        this.transferStatistics = transferStatistics;
+        try {
+            this.objectName = new ObjectName("pfs:type=Node,address=" + ObjectName.quote(address.getHostAddress()));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> entry : this.snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+        }
+        this.mBeanInfo = new MBeanInfo(NodeMetrics.class.getName(), "Metrics of a pfs node",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static Kind kindOf(Message message) {
+        if (message instanceof DiscoveryQueryMessage) {
+            return Kind.QUERY;
+        } else if (message instanceof DiscoveryReplyMessage) {
+            return Kind.REPLY;
+        } else if (message instanceof RoutingSummaryMessage) {
+            return Kind.SUMMARY;
+        } else if (message instanceof HangupMessage) {
+            return Kind.HANGUP;
+        }
+        return null;
+    }
+
+    void record(Event event, Message message) {
+        this.record(event, message, 1);
+    }
+
+    void record(Event event, Message message, int count) {
+        Kind kind = NodeMetrics.kindOf(message);
+        if (kind != null) {
+            this.messages[event.ordinal()][kind.ordinal()].add(count);
+        }
+    }
+
+    /**
+     * @param hopCount the hop limit of the round that answered, or 0 if no round did
+     */
+    void recordSearch(long elapsedMillis, int hopCount) {
+        if (hopCount == 0) {
+            this.searchesFailed.increment();
+            return;
+        }
+        this.searchMillis.record(elapsedMillis);
+        this.searchHops.record(hopCount);
+    }
+
+    void incrementDiscoveryBacklog() {
+        this.discoveryBacklog.increment();
+    }
+
+    void decrementDiscoveryBacklog() {
+        this.discoveryBacklog.decrement();
+    }
+
+    /**
+     * @return every value by name, in a stable order
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        for (Event event : Event.values()) {
+            for (Kind kind : Kind.values()) {
+                snapshot.put("messages." + event.name().toLowerCase() + "." + kind.name().toLowerCase(),
+                        this.messages[event.ordinal()][kind.ordinal()].sum());
+            }
+        }
+        snapshot.put("search.failed", this.searchesFailed.sum());
+        this.searchMillis.addTo(snapshot, "search.millis");
+        this.searchHops.addTo(snapshot, "search.hops");
+
+        long queued = 0;
+        long deepest = 0;
+        for (SendQueue sendQueue : this.sendQueues.values()) {
+            int size = sendQueue.size();
+            queued += size;
+            deepest = Math.max(deepest, size);
+        }
+        snapshot.put("queue.discovery.backlog", this.discoveryBacklog.sum());
+        snapshot.put("queue.send.neighbors", (long) this.sendQueues.size());
+        snapshot.put("queue.send.total", queued);
+        snapshot.put("queue.send.max", deepest);
+
+        snapshot.put("link.frames.sent", this.linkStatistics.getFramesSent());
+        snapshot.put("link.bytes.sent", this.linkStatistics.getBytesSent());
+        snapshot.put("link.writes", this.linkStatistics.getWrites());
+        snapshot.put("link.frames.received", this.linkStatistics.getFramesReceived());
+        snapshot.put("link.bytes.received", this.linkStatistics.getBytesReceived());
+        snapshot.put("link.reads", this.linkStatistics.getReads());
+        snapshot.put("link.dropped.expired", this.linkStatistics.getDroppedExpired());
+        snapshot.put("link.dropped.overflow", this.linkStatistics.getDroppedOverflow());
+
+        this.transferStatistics.addTo(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @return one {@code name value} line per value
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> entry : this.snapshot().entrySet()) {
+            Number value = entry.getValue();
+            sb.append(entry.getKey()).append(' ');
+            if (value instanceof Double) {
+                sb.append(String.format("%.3f", value.doubleValue()));
+            } else {
+                sb.append(value);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+        } catch (JMException e) {
+            EventLog.text(EventLog.Level.WARN, "could not register metrics with JMX: " + e);
+        }
+    }
+
+    void unregisterMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(this.objectName)) {
+                server.unregisterMBean(this.objectName);
+            }
+        } catch (JMException ignored) {
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = this.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = this.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {return this.mBeanInfo;}
+}
@@ -1,125 +1,300 @@
 package pfs.tasks;
 
+import pfs.Constants;
+import pfs.EventLog;
 import pfs.messages.*;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.concurrent.BlockingQueue;
-
-public class PeerDiscoveryTransceiver {
-    private final Socket socket;
-    private final DataOutputStream outputStream;
-    private final DataInputStream inputStream;
-    private final BlockingQueue<Message> senderQueue;
-    private final BlockingQueue<Node.ReceivedMessage> receiverQueue;
-    private final Thread senderThread;
-    private final Thread receiverThread;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking link to one neighbor, driven by a shared {@link DiscoveryEventLoop}.
+ * Frames are encoded by {@link MessageCodec}; the link starts in the legacy format and both
+ * directions switch to the compact format once the {@link HelloMessage} exchange agrees on it.
+ * Each wakeup of the sender drains every queued message into one buffer of at most
+ * {@link Constants#DISCOVERY_BATCH_BYTES}, optionally after lingering
+ * {@link Constants#DISCOVERY_LINGER_MILLIS} for more, so a flood costs one write per batch
+ * rather than one per message.
+ * A link that fails on its own, rather than by {@link #stop}, is reported to the transport's listener.
+ */
+public class PeerDiscoveryTransceiver implements Link {
+    private final SocketChannel channel;
+    private final InetAddress neighborAddress;
+    private final InetAddress initiatorAddress;
+    private final DiscoveryEventLoop eventLoop;
+    private final SendQueue senderQueue;
+    private final Transport.Listener listener;
+    private final LinkStatistics statistics;
+    private final AtomicBoolean writeScheduled;
+    private final Queue<SharedFrame> controlQueue; // event loop thread only
+
+    private SelectionKey selectionKey;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private SharedFrame pendingFrame;
+    private int sendVersion;
+    private int receiveVersion;
+    private boolean closed;
 
     public PeerDiscoveryTransceiver(
-            Socket socket,
-            BlockingQueue<Message> senderQueue,
-            BlockingQueue<Node.ReceivedMessage> receiverQueue
+            SocketChannel channel,
+            boolean outgoing,
+            DiscoveryEventLoop eventLoop,
+            SendQueue senderQueue,
+            Transport.Listener listener,
+            LinkStatistics statistics
     ) throws IOException {
-        this.socket = socket;
-        this.outputStream = new DataOutputStream(socket.getOutputStream());
-        this.inputStream = new DataInputStream(socket.getInputStream());
+        this.channel = channel;
+        this.neighborAddress = channel.socket().getInetAddress();
+        this.initiatorAddress = outgoing ? channel.socket().getLocalAddress() : this.neighborAddress;
+        this.eventLoop = eventLoop;
         this.senderQueue = senderQueue;
-        this.receiverQueue = receiverQueue;
-        this.senderThread = new Thread(this::runSender);
-        this.senderThread.setName(socket.getInetAddress().getCanonicalHostName() + ":sender");
-        this.receiverThread = new Thread(this::runReceiver);
-        this.receiverThread.setName(socket.getInetAddress().getCanonicalHostName() + ":receiver");
+        this.listener = listener;
+        this.statistics = statistics;
+        this.writeScheduled = new AtomicBoolean(false);
+        this.controlQueue = new ArrayDeque<>();
+        this.readBuffer = BufferPool.acquire();
+        this.writeBuffer = Constants.DISCOVERY_BATCH_BYTES > BufferPool.BUFFER_SIZE
+                ? ByteBuffer.allocate(Constants.DISCOVERY_BATCH_BYTES) : BufferPool.acquire();
+        this.writeBuffer.flip();
+        this.sendVersion = MessageCodec.VERSION_LEGACY;
+        this.receiveVersion = MessageCodec.VERSION_LEGACY;
+        this.channel.configureBlocking(false);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, Constants.DISCOVERY_TCP_NODELAY);
+        if (Constants.DISCOVERY_SEND_BUFFER > 0) {
+            this.channel.setOption(StandardSocketOptions.SO_SNDBUF, Constants.DISCOVERY_SEND_BUFFER);
+        }
+        if (Constants.DISCOVERY_RECEIVE_BUFFER > 0) {
+            this.channel.setOption(StandardSocketOptions.SO_RCVBUF, Constants.DISCOVERY_RECEIVE_BUFFER);
+        }
     }
 
+    @Override
+    public InetAddress getNeighborAddress() {return this.neighborAddress;}
+
+    @Override
+    public InetAddress getInitiatorAddress() {return this.initiatorAddress;}
+
+    @Override
+    public SendQueue getSenderQueue() {return this.senderQueue;}
+
+    @Override
     public void start() {
-        this.senderThread.start();
-        this.receiverThread.start();
+        this.eventLoop.execute(() -> {
+            try {
+                this.selectionKey = this.channel.register(this.eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException ignored) {
+                this.releaseBuffers();
+                return;
+            }
+            this.controlQueue.add(new SharedFrame(new HelloMessage(MessageCodec.CURRENT_VERSION, false), 1));
+            this.handleWrite();
+        });
     }
 
+    @Override
     public void stop() throws IOException {
-        this.senderThread.interrupt();
-        this.receiverThread.interrupt();
-        this.socket.close();
+        this.channel.close();
+        this.eventLoop.execute(this::releaseBuffers);
+    }
+
+    @Override
+    public void notifySend() {
+        if (this.writeScheduled.compareAndSet(false, true)) {
+            if (Constants.DISCOVERY_LINGER_MILLIS > 0) {
+                // messages queued while lingering join this batch
+                this.eventLoop.schedule(this::handleWrite, TimeUnit.MILLISECONDS.toNanos(Constants.DISCOVERY_LINGER_MILLIS));
+            } else {
+                this.eventLoop.execute(this::handleWrite);
+            }
+        }
     }
 
-    private void logMessage(Message message, String eventType) {
-        System.out.format("[%s] %s VIA %s | ", LocalDateTime.now(), eventType, this.socket.getInetAddress().getCanonicalHostName());
-        if (message instanceof DiscoveryMessage) {
-            DiscoveryMessage discoveryMessage = (DiscoveryMessage) message;
-            LocalDateTime expirationTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(discoveryMessage.expiration), ZoneId.systemDefault());
-            System.out.format("DISC %s (%d) EXPIRES %s | ", discoveryMessage.initiator.getCanonicalHostName(), discoveryMessage.sequenceId, expirationTime);
-            if (message instanceof DiscoveryQueryMessage) {
-                DiscoveryQueryMessage queryMessage = (DiscoveryQueryMessage) discoveryMessage;
-                System.out.format("QUERY %s: %s | ", (queryMessage.isKeywordSearch) ? "KW" : "FN", queryMessage.filter);
-                System.out.format("HOPCOUNT %d", queryMessage.hopCount);
-            } else if (message instanceof DiscoveryReplyMessage) {
-                DiscoveryReplyMessage replyMessage = (DiscoveryReplyMessage) discoveryMessage;
-                System.out.format("REPLY KW: %s FN: %s | ", replyMessage.keyword, replyMessage.fileName);
-                System.out.format("TERMINATOR %s", replyMessage.terminator.getCanonicalHostName());
+    void handleRead() {
+        if (this.readBuffer == null) {
+            return;
+        }
+        try {
+            int bytesRead = this.channel.read(this.readBuffer);
+            if (bytesRead < 0) {
+                this.close();
+                return;
+            }
+            this.statistics.recordRead(bytesRead);
+            this.readBuffer.flip();
+            while (true) {
+                int frameSize = MessageCodec.peekFrameSize(this.readBuffer, this.receiveVersion);
+                if (frameSize < 0 || this.readBuffer.remaining() < frameSize) {
+                    break;
+                }
+                Message message = MessageCodec.readFrame(this.readBuffer, this.receiveVersion);
+                this.statistics.recordFramesReceived(1);
+                if (message != null) {
+                    this.handleMessage(message);
+                    if (this.readBuffer == null) {
+                        // the link failed while answering a hello
+                        return;
+                    }
+                }
             }
-        } else if (message instanceof HangupMessage) {
-            HangupMessage hangupMessage = (HangupMessage) message;
-            System.out.format("HUP HANDOFF %s", hangupMessage.handoffAddress.getCanonicalHostName());
+            this.readBuffer.compact();
+            // grow to fit a frame larger than the buffer
+            if (!this.readBuffer.hasRemaining()) {
+                ByteBuffer largerBuffer = ByteBuffer.allocate(this.readBuffer.capacity() * 2);
+                this.readBuffer.flip();
+                largerBuffer.put(this.readBuffer);
+                BufferPool.release(this.readBuffer);
+                this.readBuffer = largerBuffer;
+            }
+        } catch (IOException e) {
+            this.close();
+        } catch (RuntimeException e) {
+            // such as a frame that decodes to nonsense: fail this link, not the event loop
+            this.fail(e);
         }
-        System.out.println();
     }
 
-    private static byte getTypeOfMessage(Message message) {
-        if (message instanceof DiscoveryQueryMessage) {
-            return 0;
-        } else if (message instanceof DiscoveryReplyMessage) {
-            return 1;
-        } else if (message instanceof HangupMessage) {
-            return 2;
+    void handleWrite() {
+        if (this.selectionKey == null || !this.selectionKey.isValid() || this.writeBuffer == null) {
+            return;
+        }
+        this.writeScheduled.set(false);
+        try {
+            while (true) {
+                if (!this.writeBuffer.hasRemaining()) {
+                    this.fillWriteBuffer();
+                    if (!this.writeBuffer.hasRemaining()) {
+                        break;
+                    }
+                }
+                this.statistics.recordWrite(this.channel.write(this.writeBuffer));
+                if (this.writeBuffer.hasRemaining()) {
+                    // socket buffer is full, resume when writable
+                    this.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            this.selectionKey.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            this.close();
+        } catch (CancelledKeyException ignored) {
+            // link was stopped from another thread
+        } catch (RuntimeException e) {
+            // such as a message that fails to encode: fail this link, not the event loop
+            this.fail(e);
         }
-        throw new IllegalArgumentException();
     }
 
-    private static Message getMessageOfType(byte type) {
-        switch (type) {
-            case 0:
-                return new DiscoveryQueryMessage();
-            case 1:
-                return new DiscoveryReplyMessage();
-            case 2:
-                return new HangupMessage();
+    private void handleMessage(Message message) {
+        if (message instanceof HelloMessage) {
+            HelloMessage hello = (HelloMessage) message;
+            if (hello.ack) {
+                // every frame after the peer's acknowledgement uses the agreed version
+                this.receiveVersion = hello.version;
+            } else {
+                int version = Math.min(hello.version, MessageCodec.CURRENT_VERSION);
+                if (version > MessageCodec.VERSION_LEGACY) {
+                    this.controlQueue.add(new SharedFrame(new HelloMessage(version, true), 1));
+                    this.handleWrite();
+                }
+            }
+            return;
         }
-        throw new IllegalArgumentException();
+        EventLog.message(EventLog.Level.INFO, "RECV", this.neighborAddress, message);
+        this.listener.messageReceived(message, this.neighborAddress);
     }
 
-    private void runSender() {
-        while (!Thread.interrupted()) {
+    private void fillWriteBuffer() {
+        this.writeBuffer.clear();
+        if (Constants.DISCOVERY_BATCH_BYTES < this.writeBuffer.capacity()) {
+            this.writeBuffer.limit(Constants.DISCOVERY_BATCH_BYTES);
+        }
+        int frames = 0;
+        while (true) {
+            if (this.pendingFrame == null) {
+                SharedFrame frame = this.controlQueue.poll();
+                if (frame == null) {
+                    frame = this.senderQueue.poll(System.currentTimeMillis());
+                    if (frame == null) {
+                        break;
+                    }
+                    EventLog.message(EventLog.Level.INFO, "SEND", this.neighborAddress, frame.getMessage());
+                }
+                this.pendingFrame = frame;
+            }
+            int start = this.writeBuffer.position();
             try {
-                Message message = this.senderQueue.take();
-                byte type = PeerDiscoveryTransceiver.getTypeOfMessage(message);
-                this.outputStream.writeByte(type);
-                message.writeData(this.outputStream);
-                this.outputStream.flush();
-                this.logMessage(message, "SEND");
-            } catch (InterruptedException ignore) {
-                return;
-            } catch (IOException ignore) {
+                this.pendingFrame.writeTo(this.writeBuffer, this.sendVersion);
+            } catch (BufferOverflowException e) {
+                this.writeBuffer.position(start);
+                if (start > 0) {
+                    break;
+                }
+                if (this.writeBuffer.limit() < this.writeBuffer.capacity()) {
+                    // a frame larger than a batch goes out alone
+                    this.writeBuffer.limit(this.writeBuffer.capacity());
+                    continue;
+                }
+                ByteBuffer largerBuffer = ByteBuffer.allocate(this.writeBuffer.capacity() * 2);
+                BufferPool.release(this.writeBuffer);
+                this.writeBuffer = largerBuffer;
+                continue;
             }
+            Message message = this.pendingFrame.getMessage();
+            if (message instanceof HelloMessage && ((HelloMessage) message).ack) {
+                this.sendVersion = ((HelloMessage) message).version;
+            }
+            this.pendingFrame.release();
+            this.pendingFrame = null;
+            frames++;
         }
+        this.statistics.recordFramesSent(frames);
+        this.writeBuffer.flip();
     }
 
-    private void runReceiver() {
-        while (!Thread.interrupted()) {
-            try {
-                byte type = this.inputStream.readByte();
-                Message message = PeerDiscoveryTransceiver.getMessageOfType(type);
-                message.readData(this.inputStream);
-                this.logMessage(message, "RECV");
-                this.receiverQueue.put(new Node.ReceivedMessage(message, this.socket.getInetAddress()));
-            } catch (InterruptedException ignore) {
-                return;
-            } catch (IOException ignore) {
+    private void releaseBuffers() {
+        if (this.readBuffer != null) {
+            BufferPool.release(this.readBuffer);
+            BufferPool.release(this.writeBuffer);
+            this.readBuffer = null;
+            this.writeBuffer = null;
+            if (this.pendingFrame != null) {
+                this.pendingFrame.release();
+                this.pendingFrame = null;
+            }
+            SharedFrame frame;
+            while ((frame = this.controlQueue.poll()) != null) {
+                frame.release();
             }
+            this.senderQueue.clear();
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        EventLog.text(EventLog.Level.WARN, "closing link to " + this.neighborAddress.getHostAddress() + ": " + e);
+        this.close();
+    }
+
+    private void close() {
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {
+        }
+        this.releaseBuffers();
+        if (!this.closed) {
+            this.closed = true;
+            this.listener.linkClosed(this);
         }
     }
 }
@@ -0,0 +1,90 @@
+package pfs.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Tracks searches initiated by this node and routes each incoming reply to the search it answers.
+ * Every expanding-ring round of a search gets its own sequence id, so any number of searches
+ * can be in flight at once without seeing each other's replies.
+ */
+class QueryRegistry {
+    private final AtomicInteger nextSequenceId;
+    private final ConcurrentMap<Integer, PendingQuery> pendingQueries;
+
+    QueryRegistry() {
+        this.nextSequenceId = new AtomicInteger();
+        this.pendingQueries = new ConcurrentHashMap<>();
+    }
+
+    int register(PendingQuery query) {
+        int sequenceId = this.nextSequenceId.getAndIncrement();
+        this.pendingQueries.put(sequenceId, query);
+        return sequenceId;
+    }
+
+    void unregister(int sequenceId) {
+        this.pendingQueries.remove(sequenceId);
+    }
+
+    int size() {return this.pendingQueries.size();}
+
+    /**
+     * @return false if no search is waiting for this reply, e.g. because its round already ended
+     */
+    boolean deliver(Node.TimestampedReplyMessage reply) {
+        PendingQuery query = this.pendingQueries.get(reply.getReplyMessage().sequenceId);
+        if (query == null) {
+            return false;
+        }
+        query.addReply(reply);
+        return true;
+    }
+
+    static class PendingQuery {
+        private final boolean isKeywordSearch;
+        private final String filter;
+        private final Consumer<Node.TimestampedReplyMessage> replyListener;
+        private final CompletableFuture<Node.SearchResult> result;
+        private final List<Node.TimestampedReplyMessage> replies;
+
+        PendingQuery(boolean isKeywordSearch, String filter, Consumer<Node.TimestampedReplyMessage> replyListener) {
+            this.isKeywordSearch = isKeywordSearch;
+            this.filter = filter;
+            this.replyListener = replyListener;
+            this.result = new CompletableFuture<>();
+            this.replies = new ArrayList<>();
+        }
+
+        boolean isKeywordSearch() {return this.isKeywordSearch;}
+
+        String getFilter() {return this.filter;}
+
+        CompletableFuture<Node.SearchResult> getResult() {return this.result;}
+
+        private void addReply(Node.TimestampedReplyMessage reply) {
+            synchronized (this.replies) {
+                this.replies.add(reply);
+            }
+            if (this.replyListener != null) {
+                this.replyListener.accept(reply);
+            }
+        }
+
+        /**
+         * Ends the current round and hands back its replies.
+         */
+        List<Node.TimestampedReplyMessage> drainReplies() {
+            synchronized (this.replies) {
+                List<Node.TimestampedReplyMessage> drained = new ArrayList<>(this.replies);
+                this.replies.clear();
+                return drained;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package pfs.tasks;
+
+import pfs.FileDirectory;
+import pfs.messages.DiscoveryReplyMessage;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers which peers answered a search, learned from replies passing through this node,
+ * so a repeated search can be answered here instead of flooding the network again.
+ * Entries expire after a fixed time to live and the least recently used filters are evicted
+ * once the cache is full. Only single-term filters without wildcards are cached, since a reply
+ * does not say which pattern it answered. Callers skip replies that were themselves answered from
+ * a cache, so an entry never outlives the terminator's last real answer by more than the time to live.
+ */
+class QueryResultCache {
+    private final int capacity;
+    private final long ttlMillis;
+    private final int maxSources;
+    private final LinkedHashMap<Key, CachedResult> entries;
+
+    QueryResultCache(int capacity, long ttlMillis, int maxSources) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.maxSources = maxSources;
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                return this.size() > QueryResultCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Records that {@code terminator} serves the matched file, which answers each of its keyword
+     * terms and its file name.
+     */
+    void put(InetAddress terminator, DiscoveryReplyMessage.Match match, long now) {
+        if (this.capacity <= 0) {
+            return;
+        }
+        Source source = new Source(terminator, match);
+        synchronized (this.entries) {
+            for (String term : FileDirectory.termsOf(match.keyword)) {
+                this.add(new Key(true, term), source, now);
+            }
+            this.add(new Key(false, match.fileName.toLowerCase(Locale.ROOT)), source, now);
+        }
+    }
+
+    /**
+     * @return the known matches for the search grouped by terminator, or an empty map on a miss
+     */
+    Map<InetAddress, List<DiscoveryReplyMessage.Match>> get(boolean isKeywordSearch, String filter, long now) {
+        Map<InetAddress, List<DiscoveryReplyMessage.Match>> matches = new LinkedHashMap<>();
+        List<String> terms = FileDirectory.patternsOf(isKeywordSearch, filter);
+        if (this.capacity <= 0 || terms.size() != 1 || terms.get(0).indexOf(FileDirectory.WILDCARD) >= 0) {
+            return matches;
+        }
+        Key key = new Key(isKeywordSearch, terms.get(0));
+        synchronized (this.entries) {
+            CachedResult entry = this.entries.get(key);
+            if (entry == null) {
+                return matches;
+            }
+            if (entry.expiration < now) {
+                this.entries.remove(key);
+                return matches;
+            }
+            for (Source source : entry.sources) {
+                matches.computeIfAbsent(source.terminator, (InetAddress terminator) -> new ArrayList<>()).add(source.match);
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Forgets every source served by a peer that left the network.
+     */
+    void removeTerminator(InetAddress terminator) {
+        synchronized (this.entries) {
+            Iterator<CachedResult> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedResult entry = iterator.next();
+                entry.sources.removeIf((Source source) -> source.terminator.equals(terminator));
+                if (entry.sources.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    private void add(Key key, Source source, long now) {
+        CachedResult entry = this.entries.get(key);
+        if (entry == null || entry.expiration < now) {
+            entry = new CachedResult();
+            this.entries.put(key, entry);
+        }
+        entry.expiration = now + this.ttlMillis;
+        entry.sources.removeIf((Source existing) -> existing.terminator.equals(source.terminator)
+                && existing.match.fileName.equals(source.match.fileName));
+        if (entry.sources.size() == this.maxSources) {
+            entry.sources.remove(0);
+        }
+        entry.sources.add(source);
+    }
+
+    private static class Source {
+        private final InetAddress terminator;
+        private final DiscoveryReplyMessage.Match match;
+
+        Source(InetAddress terminator, DiscoveryReplyMessage.Match match) {
+            this.terminator = terminator;
+            this.match = match;
+        }
+    }
+
+    private static class CachedResult {
+        private final List<Source> sources = new ArrayList<>();
+        private long expiration;
+    }
+
+    private static class Key {
+        private final boolean isKeywordSearch;
+        private final String filter;
+
+        Key(boolean isKeywordSearch, String filter) {
+            this.isKeywordSearch = isKeywordSearch;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.isKeywordSearch == key.isKeywordSearch && this.filter.equals(key.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.filter.hashCode() + (this.isKeywordSearch ? 1 : 0);
+        }
+    }
+}
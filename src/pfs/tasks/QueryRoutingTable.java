@@ -0,0 +1,271 @@
+package pfs.tasks;
+
+import java.net.InetAddress;
+
+/**
+ * Duplicate-suppression and reverse-path table for discovery queries.
+ * Entries are keyed by the (initiator, sequenceId) pair packed into a long and remember the
+ * neighbor each query arrived from, so replies can retrace the path. The packed key is exact
+ * only for IPv4, so the initiator is stored too and compared on every hit.
+ * <p>
+ * The table is split into lock-striped segments of open-addressed arrays, so lookups allocate
+ * nothing and threads touching different segments never contend. Each segment also owns a
+ * hashed timer wheel; the owner calls {@link #advance} at least every
+ * {@link #MAX_ADVANCE_INTERVAL_MILLIS} to expire entries in O(1) per entry.
+ * The table has no clock of its own: callers pass the current time, so it runs in virtual time too.
+ */
+public class QueryRoutingTable {
+    private static final int SEGMENT_COUNT = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final int WHEEL_SLOTS = 512;
+    private static final long TICK_MILLIS = 10;
+    // advancing less often than one rotation of the wheel would skip slots
+    public static final long MAX_ADVANCE_INTERVAL_MILLIS = WHEEL_SLOTS * TICK_MILLIS / 2;
+
+    private final Segment[] segments;
+    private volatile long lastTick;
+
+    public QueryRoutingTable() {
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    public static long packKey(InetAddress initiator, int sequenceId) {
+        // Inet4Address.hashCode is the address itself; IPv6 addresses may collide, see Segment.indexOf
+        return ((long) initiator.hashCode() << 32) | (sequenceId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Records a query unless an unexpired entry already exists.
+     *
+     * @return true if the query was new, false if it is a duplicate
+     */
+    public boolean putIfAbsent(InetAddress initiator, int sequenceId, long expiration, InetAddress neighborAddress, long now) {
+        long key = QueryRoutingTable.packKey(initiator, sequenceId);
+        long hash = QueryRoutingTable.mix(key);
+        return this.segmentFor(hash).putIfAbsent(key, initiator, hash, expiration, neighborAddress, now);
+    }
+
+    /**
+     * @return the neighbor the query arrived from, or null if unknown or expired by {@code now}
+     */
+    public InetAddress getNeighbor(InetAddress initiator, int sequenceId, long now) {
+        long key = QueryRoutingTable.packKey(initiator, sequenceId);
+        long hash = QueryRoutingTable.mix(key);
+        return this.segmentFor(hash).get(key, initiator, hash, now);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Expires everything due up to {@code now}.
+     */
+    public void advance(long now) {
+        // only sweep ticks that have fully elapsed, so every entry in the slot is already due
+        long currentTick = now / TICK_MILLIS - 1;
+        // never sweep more than one full rotation: slots repeat after that
+        long fromTick = Math.max(this.lastTick + 1, currentTick - WHEEL_SLOTS + 1);
+        for (long tick = fromTick; tick <= currentTick; tick++) {
+            for (Segment segment : this.segments) {
+                segment.expireSlot(tick, now);
+            }
+        }
+        this.lastTick = currentTick;
+    }
+
+    private Segment segmentFor(long hash) {
+        return this.segments[(int) (hash >>> 60) & (SEGMENT_COUNT - 1)];
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int slotOf(long expiration) {
+        return (int) ((expiration / TICK_MILLIS) & (WHEEL_SLOTS - 1));
+    }
+
+    private static class Segment {
+        private long[] keys;
+        private InetAddress[] initiators;
+        private long[] expirations;
+        private InetAddress[] neighbors; // null marks an empty slot
+        private int size;
+
+        private final long[][] wheel;
+        private final InetAddress[][] wheelInitiators;
+        private final int[] wheelSizes;
+
+        Segment() {
+            this.keys = new long[INITIAL_SEGMENT_CAPACITY];
+            this.initiators = new InetAddress[INITIAL_SEGMENT_CAPACITY];
+            this.expirations = new long[INITIAL_SEGMENT_CAPACITY];
+            this.neighbors = new InetAddress[INITIAL_SEGMENT_CAPACITY];
+            this.wheel = new long[WHEEL_SLOTS][];
+            this.wheelInitiators = new InetAddress[WHEEL_SLOTS][];
+            this.wheelSizes = new int[WHEEL_SLOTS];
+        }
+
+        synchronized int size() {return this.size;}
+
+        synchronized InetAddress get(long key, InetAddress initiator, long hash, long now) {
+            int index = this.indexOf(key, initiator, hash);
+            if (index < 0 || this.expirations[index] < now) {
+                return null;
+            }
+            return this.neighbors[index];
+        }
+
+        synchronized boolean putIfAbsent(long key, InetAddress initiator, long hash, long expiration, InetAddress neighborAddress, long now) {
+            int index = this.indexOf(key, initiator, hash);
+            if (index >= 0) {
+                if (this.expirations[index] >= now) {
+                    return false;
+                }
+                // stale entry not swept yet: reuse it
+                this.expirations[index] = expiration;
+                this.neighbors[index] = neighborAddress;
+                this.schedule(key, initiator, expiration);
+                return true;
+            }
+
+            if ((this.size + 1) * 4 > this.keys.length * 3) {
+                this.resize();
+            }
+            int mask = this.keys.length - 1;
+            int slot = (int) hash & mask;
+            while (this.neighbors[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            this.keys[slot] = key;
+            this.initiators[slot] = initiator;
+            this.expirations[slot] = expiration;
+            this.neighbors[slot] = neighborAddress;
+            this.size++;
+            this.schedule(key, initiator, expiration);
+            return true;
+        }
+
+        synchronized void expireSlot(long tick, long now) {
+            int slot = (int) (tick & (WHEEL_SLOTS - 1));
+            long[] slotKeys = this.wheel[slot];
+            InetAddress[] slotInitiators = this.wheelInitiators[slot];
+            int slotSize = this.wheelSizes[slot];
+            this.wheelSizes[slot] = 0;
+            for (int i = 0; i < slotSize; i++) {
+                long key = slotKeys[i];
+                InetAddress initiator = slotInitiators[i];
+                slotInitiators[i] = null;
+                int index = this.indexOf(key, initiator, QueryRoutingTable.mix(key));
+                if (index < 0) {
+                    continue;
+                }
+                if (this.expirations[index] < now) {
+                    this.removeAt(index);
+                } else if (QueryRoutingTable.slotOf(this.expirations[index]) == slot) {
+                    // due on a later rotation of the wheel
+                    this.schedule(key, initiator, this.expirations[index]);
+                }
+                // otherwise the entry was refreshed and already sits in another slot
+            }
+        }
+
+        private void schedule(long key, InetAddress initiator, long expiration) {
+            int slot = QueryRoutingTable.slotOf(expiration);
+            long[] slotKeys = this.wheel[slot];
+            InetAddress[] slotInitiators = this.wheelInitiators[slot];
+            int slotSize = this.wheelSizes[slot];
+            if (slotKeys == null) {
+                slotKeys = new long[8];
+                slotInitiators = new InetAddress[8];
+                this.wheel[slot] = slotKeys;
+                this.wheelInitiators[slot] = slotInitiators;
+            } else if (slotSize == slotKeys.length) {
+                long[] grown = new long[slotKeys.length * 2];
+                System.arraycopy(slotKeys, 0, grown, 0, slotSize);
+                slotKeys = grown;
+                this.wheel[slot] = slotKeys;
+                InetAddress[] grownInitiators = new InetAddress[slotKeys.length];
+                System.arraycopy(slotInitiators, 0, grownInitiators, 0, slotSize);
+                slotInitiators = grownInitiators;
+                this.wheelInitiators[slot] = slotInitiators;
+            }
+            slotKeys[slotSize] = key;
+            slotInitiators[slotSize] = initiator;
+            this.wheelSizes[slot] = slotSize + 1;
+        }
+
+        private int indexOf(long key, InetAddress initiator, long hash) {
+            int mask = this.keys.length - 1;
+            int slot = (int) hash & mask;
+            while (this.neighbors[slot] != null) {
+                // equal keys of different IPv6 initiators are different entries
+                if (this.keys[slot] == key && this.initiators[slot].equals(initiator)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void removeAt(int index) {
+            // backward-shift deletion keeps probe sequences intact without tombstones
+            int mask = this.keys.length - 1;
+            int hole = index;
+            int next = (hole + 1) & mask;
+            while (this.neighbors[next] != null) {
+                int home = (int) QueryRoutingTable.mix(this.keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.keys[hole] = this.keys[next];
+                    this.initiators[hole] = this.initiators[next];
+                    this.expirations[hole] = this.expirations[next];
+                    this.neighbors[hole] = this.neighbors[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            this.initiators[hole] = null;
+            this.neighbors[hole] = null;
+            this.size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = this.keys;
+            InetAddress[] oldInitiators = this.initiators;
+            long[] oldExpirations = this.expirations;
+            InetAddress[] oldNeighbors = this.neighbors;
+            int capacity = oldKeys.length * 2;
+            this.keys = new long[capacity];
+            this.initiators = new InetAddress[capacity];
+            this.expirations = new long[capacity];
+            this.neighbors = new InetAddress[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldNeighbors[i] == null) {
+                    continue;
+                }
+                int slot = (int) QueryRoutingTable.mix(oldKeys[i]) & mask;
+                while (this.neighbors[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.initiators[slot] = oldInitiators[i];
+                this.expirations[slot] = oldExpirations[i];
+                this.neighbors[slot] = oldNeighbors[i];
+            }
+        }
+    }
+}
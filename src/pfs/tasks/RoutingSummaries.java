@@ -0,0 +1,172 @@
+package pfs.tasks;
+
+import pfs.FileDirectory;
+import pfs.messages.RoutingSummaryMessage;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Attenuated Bloom filters describing what can be found behind each neighbor.
+ * Level {@code i} of a summary holds the terms of files {@code i} hops behind the neighbor; files
+ * further away than the last level are not summarized. The summary sent to a neighbor is built
+ * from this node's own files and the summaries of every other neighbor, each shifted one level
+ * down with its last level dropped, so content never echoes back over the link it came from and
+ * terms of removed files or departed nodes fade out within {@code depth} rounds, even around cycles.
+ * <p>
+ * Filters hold keyword terms and lower-case file names, each exactly and by a short prefix.
+ * Patterns a filter cannot rule out (short prefixes, substrings, suffixes) always match.
+ */
+class RoutingSummaries {
+    private static final int PREFIX_LENGTH = 3;
+
+    private final int depth;
+    private final int bitCount;
+    private final int hashCount;
+
+    private final ConcurrentMap<InetAddress, BloomFilter[]> neighborSummaries;
+    private final Map<InetAddress, long[][]> sentSummaries;
+    private volatile BloomFilter localFilter;
+
+    RoutingSummaries(int depth, int bitCount, int hashCount) {
+        this.depth = Math.max(2, depth);
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.neighborSummaries = new ConcurrentHashMap<>();
+        this.sentSummaries = new HashMap<>();
+        this.localFilter = new BloomFilter(bitCount, hashCount);
+    }
+
+    /**
+     * Rebuilds the level-0 filter from the files currently shared.
+     */
+    void refreshLocal(FileDirectory directory) {
+        BloomFilter filter = new BloomFilter(this.bitCount, this.hashCount);
+        for (String term : directory.keywordTerms()) {
+            RoutingSummaries.addTerm(filter, 'k', term);
+        }
+        for (String fileName : directory.fileNameTerms()) {
+            RoutingSummaries.addTerm(filter, 'f', fileName);
+        }
+        this.localFilter = filter;
+    }
+
+    /**
+     * @return the summary to send to {@code neighbor}, or null if it has not changed since the last one
+     */
+    synchronized RoutingSummaryMessage summaryFor(InetAddress neighbor) {
+        BloomFilter[] levels = new BloomFilter[this.depth];
+        levels[0] = new BloomFilter(this.localFilter.getWords().clone(), this.hashCount);
+        for (int i = 1; i < this.depth; i++) {
+            levels[i] = new BloomFilter(this.bitCount, this.hashCount);
+        }
+        for (Map.Entry<InetAddress, BloomFilter[]> entry : this.neighborSummaries.entrySet()) {
+            if (entry.getKey().equals(neighbor)) {
+                continue;
+            }
+            BloomFilter[] summary = entry.getValue();
+            for (int i = 0; i + 1 < this.depth && i < summary.length; i++) {
+                levels[i + 1].or(summary[i]);
+            }
+        }
+
+        long[][] words = new long[this.depth][];
+        for (int i = 0; i < this.depth; i++) {
+            words[i] = levels[i].getWords();
+        }
+        if (Arrays.deepEquals(words, this.sentSummaries.get(neighbor))) {
+            return null;
+        }
+        this.sentSummaries.put(neighbor, words);
+        return new RoutingSummaryMessage(this.hashCount, words);
+    }
+
+    /**
+     * Stores a neighbor's summary. Summaries built with other filter parameters are dropped,
+     * so queries keep flooding towards that neighbor.
+     */
+    void update(InetAddress neighbor, RoutingSummaryMessage message) {
+        int wordCount = this.localFilter.getWords().length;
+        if (message.hashCount != this.hashCount || message.levels.length == 0) {
+            this.neighborSummaries.remove(neighbor);
+            return;
+        }
+        BloomFilter[] summary = new BloomFilter[message.levels.length];
+        for (int i = 0; i < summary.length; i++) {
+            if (message.levels[i].length != wordCount) {
+                this.neighborSummaries.remove(neighbor);
+                return;
+            }
+            summary[i] = new BloomFilter(message.levels[i], this.hashCount);
+        }
+        this.neighborSummaries.put(neighbor, summary);
+    }
+
+    /**
+     * Forgets a neighbor whose link closed or reopened, so a new link gets a fresh summary.
+     */
+    synchronized void remove(InetAddress neighbor) {
+        this.neighborSummaries.remove(neighbor);
+        this.sentSummaries.remove(neighbor);
+    }
+
+    /**
+     * @param hopCount how many more hops the query may travel past {@code neighbor}
+     * @return false only if no file within reach of the query behind {@code neighbor} can match
+     */
+    boolean mightReach(InetAddress neighbor, boolean isKeywordSearch, String filter, int hopCount) {
+        BloomFilter[] summary = this.neighborSummaries.get(neighbor);
+        if (summary == null) {
+            return true;
+        }
+        if (hopCount >= summary.length) {
+            // the query may reach files beyond what the summary covers
+            return true;
+        }
+        List<String> terms = FileDirectory.patternsOf(isKeywordSearch, filter);
+        for (int i = 0; i <= hopCount; i++) {
+            if (RoutingSummaries.mightMatchAll(summary[i], isKeywordSearch ? 'k' : 'f', terms)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean mightMatchAll(BloomFilter filter, char namespace, List<String> terms) {
+        // all terms must be held by the same file, so they must all show up on one level
+        for (String term : terms) {
+            if (!RoutingSummaries.mightMatch(filter, namespace, term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean mightMatch(BloomFilter filter, char namespace, String pattern) {
+        boolean leading = pattern.charAt(0) == FileDirectory.WILDCARD;
+        boolean trailing = pattern.length() > 1 && pattern.charAt(pattern.length() - 1) == FileDirectory.WILDCARD;
+        if (leading) {
+            return true;
+        }
+        if (!trailing) {
+            return filter.mightContain(namespace + ":" + pattern);
+        }
+        String prefix = pattern.substring(0, pattern.length() - 1);
+        if (prefix.length() < PREFIX_LENGTH || prefix.indexOf(FileDirectory.WILDCARD) >= 0) {
+            return true;
+        }
+        return filter.mightContain(namespace + "<" + prefix.substring(0, PREFIX_LENGTH));
+    }
+
+    private static void addTerm(BloomFilter filter, char namespace, String term) {
+        filter.add(namespace + ":" + term);
+        if (term.length() >= PREFIX_LENGTH) {
+            filter.add(namespace + "<" + term.substring(0, PREFIX_LENGTH));
+        }
+    }
+}
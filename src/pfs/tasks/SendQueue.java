@@ -0,0 +1,88 @@
+package pfs.tasks;
+
+import pfs.messages.DiscoveryMessage;
+import pfs.messages.DiscoveryQueryMessage;
+import pfs.messages.DiscoveryReplyMessage;
+import pfs.messages.Message;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Bounded, prioritized queue of the frames waiting for one neighbor link; it owns one reference
+ * to each frame it holds and releases it when the frame is dropped.
+ * Control messages (hangups, routing summaries) go out first, then replies, then queries.
+ * Replies and queries are each capped at {@code capacity}; when a class is full its oldest message
+ * is shed, as it is the closest to expiring. Discovery messages that expired while queued are
+ * dropped when dequeued instead of being written.
+ */
+class SendQueue {
+    private final int capacity;
+    private final LinkStatistics statistics;
+
+    private final ArrayDeque<SharedFrame> control; // guarded by this
+    private final ArrayDeque<SharedFrame> replies; // guarded by this
+    private final ArrayDeque<SharedFrame> queries; // guarded by this
+
+    SendQueue(int capacity, LinkStatistics statistics) {
+        this.capacity = Math.max(1, capacity);
+        this.statistics = statistics;
+        this.control = new ArrayDeque<>();
+        this.replies = new ArrayDeque<>();
+        this.queries = new ArrayDeque<>();
+    }
+
+    synchronized void add(SharedFrame frame) {
+        Message message = frame.getMessage();
+        ArrayDeque<SharedFrame> queue;
+        if (message instanceof DiscoveryReplyMessage) {
+            queue = this.replies;
+        } else if (message instanceof DiscoveryQueryMessage) {
+            queue = this.queries;
+        } else {
+            // few and never shed: losing a hangup or summary would leave the neighbor out of date
+            this.control.add(frame);
+            return;
+        }
+        if (queue.size() == this.capacity) {
+            queue.poll().release();
+            this.statistics.recordDroppedOverflow();
+        }
+        queue.add(frame);
+    }
+
+    /**
+     * @return the most urgent frame that has not expired by {@code now}, or null if none is left;
+     * the caller takes over the queue's reference
+     */
+    synchronized SharedFrame poll(long now) {
+        SharedFrame frame = this.control.poll();
+        if (frame != null) {
+            return frame;
+        }
+        while ((frame = this.replies.poll()) != null || (frame = this.queries.poll()) != null) {
+            if (((DiscoveryMessage) frame.getMessage()).expiration >= now) {
+                return frame;
+            }
+            frame.release();
+            this.statistics.recordDroppedExpired();
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return this.control.size() + this.replies.size() + this.queries.size();
+    }
+
+    /**
+     * Drops every queued frame, once the link is closed.
+     */
+    synchronized void clear() {
+        for (ArrayDeque<SharedFrame> queue : Arrays.asList(this.control, this.replies, this.queries)) {
+            SharedFrame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package pfs.tasks;
+
+import pfs.messages.Message;
+import pfs.messages.MessageCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message encoded once and shared by every link it is sent on, so forwarding to many neighbors
+ * costs one encoding plus a copy per link.
+ * The compact frame is encoded into a pooled buffer when the frame is built; the legacy frame,
+ * only needed by links to older peers, on first use. Every send queue holding the frame owns one
+ * reference, and the pooled buffer is recycled once the last link has written or dropped it.
+ */
+final class SharedFrame {
+    private final Message message;
+    private final AtomicInteger references;
+    private final ByteBuffer compactFrame; // never modified once encoded: links copy from its array
+    private volatile ByteBuffer legacyFrame;
+
+    /**
+     * @param references how many send queues the frame is about to be added to
+     */
+    SharedFrame(Message message, int references) {
+        this.message = message;
+        this.references = new AtomicInteger(references);
+        this.compactFrame = SharedFrame.encode(message, MessageCodec.VERSION_COMPACT, BufferPool.acquireFrame());
+    }
+
+    Message getMessage() {return this.message;}
+
+    /**
+     * @return the size of the compact frame in bytes
+     */
+    int length() {return this.compactFrame.limit();}
+
+    /**
+     * Appends the frame in the given codec version to {@code out}.
+     *
+     * @throws BufferOverflowException if the frame does not fit; {@code out} is then unchanged
+     */
+    void writeTo(ByteBuffer out, int version) {
+        if (version == MessageCodec.VERSION_COMPACT) {
+            SharedFrame.copy(this.compactFrame, out);
+            return;
+        }
+        ByteBuffer frame = this.legacyFrame;
+        if (frame == null) {
+            // links racing here encode the same bytes, so the last one may win
+            frame = SharedFrame.encode(this.message, version, ByteBuffer.allocate(this.compactFrame.capacity()));
+            this.legacyFrame = frame;
+        }
+        SharedFrame.copy(frame, out);
+    }
+
+    /**
+     * Gives up one reference; the last one returns the encoded frame to the pool.
+     */
+    void release() {
+        if (this.references.decrementAndGet() == 0) {
+            BufferPool.release(this.compactFrame);
+        }
+    }
+
+    private static void copy(ByteBuffer frame, ByteBuffer out) {
+        // absolute reads of the backing array, so links never share a position
+        out.put(frame.array(), frame.arrayOffset(), frame.limit());
+    }
+
+    private static ByteBuffer encode(Message message, int version, ByteBuffer buffer) {
+        while (true) {
+            try {
+                MessageCodec.writeFrame(buffer, message, version);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                BufferPool.release(buffer);
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            } catch (IOException e) {
+                // frames are encoded in memory
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package pfs.tasks;
+
+import pfs.ContentHash;
+import pfs.Constants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Downloads a file in fixed-size chunks from several peers at once.
+ * Every source pulls the next missing chunk as soon as it finishes the previous one,
+ * so faster peers end up serving more of the file. Chunks that fail or stall are
+ * handed back to the pool and picked up by another source. Finished chunks are
+ * recorded in the {@link DownloadProgress} bitmap so an interrupted download resumes.
+ * <p>
+ * Sources may hold the same content under different names. When the expected {@link ContentHash}
+ * is known, every chunk is hashed as it arrives and a chunk that does not match is fetched again,
+ * preferably from another source.
+ * <p>
+ * A stalled chunk may be fetched by two sources at once, so each chunk is received into memory
+ * and only the first verified copy is written to the file; later copies are discarded.
+ */
+class SwarmDownload {
+    private static final int MISSING = 0;
+    private static final int COMPLETE = 1;
+    private static final int WRITING = 2;
+
+    private final List<Source> sources;
+    private final FileChannel fileChannel;
+    private final DownloadProgress progress;
+    private final long headerLength;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final ContentHash expectedHash;
+
+    private final Deque<Integer> pendingChunks;
+    private final Map<Integer, Long> inFlightChunks; // chunk index -> start time in millis
+    private final AtomicIntegerArray completedChunks; // MISSING, WRITING or COMPLETE
+    private final AtomicInteger remainingChunks;
+
+    static class Source {
+        final InetAddress address;
+        final String fileName;
+
+        Source(InetAddress address, String fileName) {
+            this.address = address;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * @param expectedHash the verified hash tree of the content, or null to accept chunks unchecked
+     */
+    SwarmDownload(List<Source> sources, FileChannel fileChannel, DownloadProgress progress, long headerLength, long contentLength, ContentHash expectedHash) {
+        this.sources = sources;
+        this.fileChannel = fileChannel;
+        this.progress = progress;
+        this.headerLength = headerLength;
+        this.contentLength = contentLength;
+        this.chunkSize = Constants.TRANSFER_CHUNK_SIZE;
+        this.chunkCount = (int) ((contentLength + this.chunkSize - 1) / this.chunkSize);
+        this.expectedHash = expectedHash;
+        this.pendingChunks = new ConcurrentLinkedDeque<>();
+        this.inFlightChunks = new ConcurrentHashMap<>();
+        this.completedChunks = new AtomicIntegerArray(this.chunkCount);
+        this.remainingChunks = new AtomicInteger(this.chunkCount);
+        for (int chunk = 0; chunk < this.chunkCount; chunk++) {
+            if (progress.isComplete(chunk)) {
+                this.completedChunks.set(chunk, COMPLETE);
+                this.remainingChunks.decrementAndGet();
+            } else {
+                this.pendingChunks.add(chunk);
+            }
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (Source source : this.sources) {
+            Thread worker = new Thread(() -> this.runWorker(source));
+            worker.setName("swarm-" + source.address.getHostAddress());
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (this.remainingChunks.get() > 0) {
+            throw new IOException("download incomplete: " + this.remainingChunks.get() + " chunks missing");
+        }
+    }
+
+    private void runWorker(Source source) {
+        int failures = 0;
+        int busyResponses = 0;
+        while (this.remainingChunks.get() > 0 && failures < Constants.TRANSFER_MAX_FAILURES
+                && busyResponses < Constants.TRANSFER_MAX_BUSY_RETRIES) {
+            Integer chunk = this.pendingChunks.poll();
+            if (chunk == null) {
+                chunk = this.findStalledChunk();
+                if (chunk == null) {
+                    // everything left is in flight on healthy sources
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            if (this.completedChunks.get(chunk) != MISSING) {
+                continue;
+            }
+
+            this.inFlightChunks.put(chunk, System.currentTimeMillis());
+            try {
+                byte[] data = this.fetchChunk(source, chunk);
+                // only the first verified copy reaches the file
+                if (this.completedChunks.compareAndSet(chunk, MISSING, WRITING)) {
+                    try {
+                        this.writeChunk(chunk, data);
+                    } catch (IOException e) {
+                        this.completedChunks.set(chunk, MISSING);
+                        throw e;
+                    }
+                    this.completedChunks.set(chunk, COMPLETE);
+                    this.remainingChunks.decrementAndGet();
+                    this.progress.markComplete(chunk);
+                }
+                this.inFlightChunks.remove(chunk);
+                failures = 0;
+                busyResponses = 0;
+            } catch (SourceBusyException e) {
+                // the source is at its upload cap: give the chunk to someone else and back off
+                this.inFlightChunks.remove(chunk);
+                if (this.completedChunks.get(chunk) == MISSING) {
+                    this.pendingChunks.addFirst(chunk);
+                }
+                busyResponses++;
+                try {
+                    Thread.sleep(e.getRetryAfterMillis());
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (CorruptChunkException e) {
+                // put the chunk at the back so another source is likely to pick it up first
+                this.inFlightChunks.remove(chunk);
+                if (this.completedChunks.get(chunk) == MISSING) {
+                    this.pendingChunks.addLast(chunk);
+                }
+                failures++;
+            } catch (IOException e) {
+                this.inFlightChunks.remove(chunk);
+                if (this.completedChunks.get(chunk) == MISSING) {
+                    this.pendingChunks.addFirst(chunk);
+                }
+                failures++;
+            }
+        }
+    }
+
+    private Integer findStalledChunk() {
+        long stallTime = System.currentTimeMillis() - Constants.TRANSFER_STALL_MILLIS;
+        for (Map.Entry<Integer, Long> entry : this.inFlightChunks.entrySet()) {
+            if (entry.getValue() < stallTime && this.completedChunks.get(entry.getKey()) == MISSING) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the chunk's bytes, verified against the expected hash if there is one
+     */
+    private byte[] fetchChunk(Source source, int chunk) throws IOException {
+        long offset = (long) chunk * this.chunkSize;
+        byte[] data = new byte[(int) Math.min(this.chunkSize, this.contentLength - offset)];
+        try (Socket socket = new Socket()) {
+            DataInputStream in = SwarmDownload.requestRange(socket, source.address, source.fileName, offset, data.length);
+            if (in.readLong() != this.contentLength) {
+                throw new IOException("content length mismatch from " + source.address.getHostAddress());
+            }
+            try {
+                in.readFully(data);
+            } catch (EOFException e) {
+                throw new IOException("connection closed mid-chunk");
+            }
+        }
+        if (this.expectedHash != null) {
+            MessageDigest digest = ContentHash.newChunkDigest();
+            digest.update(data);
+            if (!this.expectedHash.verifyChunk(chunk, digest.digest())) {
+                throw new CorruptChunkException("chunk " + chunk + " from " + source.address.getHostAddress() + " failed verification");
+            }
+        }
+        return data;
+    }
+
+    private void writeChunk(int chunk, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = this.headerLength + (long) chunk * this.chunkSize;
+        while (buffer.hasRemaining()) {
+            position += this.fileChannel.write(buffer, position);
+        }
+    }
+
+    static long queryContentLength(Source source) throws IOException {
+        try (Socket socket = new Socket()) {
+            DataInputStream in = SwarmDownload.requestRange(socket, source.address, source.fileName, 0, 0);
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Fetches the chunk hashes of a source's copy, which the caller checks against the advertised root.
+     * The list is only allocated once its sizes match {@code contentLength} in
+     * {@link Constants#TRANSFER_CHUNK_SIZE} chunks.
+     */
+    static ContentHash queryContentHash(Source source, long contentLength) throws IOException {
+        try (Socket socket = new Socket()) {
+            DataInputStream in = SwarmDownload.requestRange(socket, source.address, source.fileName, 0, Constants.TRANSFER_REQUEST_HASHES);
+            long sourceLength = in.readLong();
+            int chunkSize = in.readInt();
+            int chunkCount = in.readInt();
+            if (sourceLength != contentLength || chunkSize != Constants.TRANSFER_CHUNK_SIZE
+                    || chunkCount != (contentLength + chunkSize - 1) / chunkSize) {
+                throw new IOException("bad hash list from " + source.address.getHostAddress());
+            }
+            byte[][] chunkHashes = new byte[chunkCount][ContentHash.HASH_LENGTH];
+            for (byte[] chunkHash : chunkHashes) {
+                in.readFully(chunkHash);
+            }
+            return new ContentHash(chunkSize, chunkHashes);
+        }
+    }
+
+    private static DataInputStream requestRange(Socket socket, InetAddress source, String fileName, long offset, long length) throws IOException {
+        socket.connect(new InetSocketAddress(source, Constants.TRANSFER_PORT), Constants.TRANSFER_STALL_MILLIS);
+        socket.setSoTimeout(Constants.TRANSFER_STALL_MILLIS);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(fileName);
+        out.writeLong(offset);
+        out.writeLong(length);
+        out.flush();
+
+        byte status = in.readByte();
+        if (status == Constants.TRANSFER_STATUS_BUSY) {
+            throw new SourceBusyException(in.readInt());
+        } else if (status != Constants.TRANSFER_STATUS_OK) {
+            throw new IOException(fileName + " not available from " + source.getHostAddress());
+        }
+        return in;
+    }
+
+    static class CorruptChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptChunkException(String message) {
+            super(message);
+        }
+    }
+
+    static class SourceBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfterMillis;
+
+        SourceBusyException(int retryAfterMillis) {
+            super("source busy, retry after " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        int getRetryAfterMillis() {return this.retryAfterMillis;}
+    }
+}
@@ -0,0 +1,247 @@
+package pfs.tasks;
+
+import pfs.Constants;
+import pfs.FileDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sockets on the real network: discovery links over non-blocking channels, file transfers over
+ * {@link TransferServer}, and a tracker reached by host name.
+ * Given a local address, every listener binds to it and every outgoing connection leaves from it,
+ * so peers and the tracker know the node by that address; several nodes can then share one host
+ * and one JVM on different loopback addresses, such as 127.0.0.2 and 127.0.0.3.
+ */
+class TcpTransport implements Transport {
+    private final String trackerName;
+    private final InetAddress localAddress;
+    private final InetAddress bindAddress; // null to listen on every interface
+    private final DiscoveryEventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop;
+    private final LinkStatistics statistics;
+    private final TransferStatistics transferStatistics;
+
+    private Listener listener;
+    private ListenerTask discoveryListenerTask;
+    private ListenerTask transferServerTask;
+
+    /**
+     * @param bindAddress the address to listen on and connect from, or null for the host's address on every interface
+     */
+    TcpTransport(String trackerName, InetAddress bindAddress) throws IOException {
+        this.trackerName = trackerName;
+        this.bindAddress = bindAddress;
+        this.localAddress = bindAddress != null ? bindAddress : InetAddress.getLocalHost();
+        this.eventLoops = new DiscoveryEventLoop[Constants.DISCOVERY_EVENT_LOOPS];
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new DiscoveryEventLoop("discovery-io-" + i);
+        }
+        this.nextEventLoop = new AtomicInteger();
+        this.statistics = new LinkStatistics();
+        this.transferStatistics = new TransferStatistics();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {return this.localAddress;}
+
+    @Override
+    public LinkStatistics getLinkStatistics() {return this.statistics;}
+
+    @Override
+    public TransferStatistics getTransferStatistics() {return this.transferStatistics;}
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor((Runnable task) -> {
+            Thread thread = new Thread(task);
+            thread.setName(name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start(FileDirectory directory, Listener listener) throws IOException {
+        this.listener = listener;
+        for (DiscoveryEventLoop eventLoop : this.eventLoops) {
+            eventLoop.start();
+        }
+        this.discoveryListenerTask = new DiscoveryListener();
+        this.transferServerTask = new TransferServer(directory, this.bindAddress, this.transferStatistics);
+        try {
+            TcpTransport.startListener(this.discoveryListenerTask, "discovery-listener");
+            TcpTransport.startListener(this.transferServerTask, "transfer-server");
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void startListener(ListenerTask task, String name) throws InterruptedException {
+        Thread thread = new Thread(task);
+        thread.setName(name);
+        thread.start();
+        task.waitForReady();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        this.discoveryListenerTask.stop();
+        this.transferServerTask.stop();
+    }
+
+    @Override
+    public void shutdown(Collection<Link> links) throws IOException, InterruptedException {
+        // let queued hangups reach the neighbors
+        Thread.sleep(500);
+        for (Link link : links) {
+            link.stop();
+        }
+        for (DiscoveryEventLoop eventLoop : this.eventLoops) {
+            eventLoop.stop();
+        }
+    }
+
+    @Override
+    public Link connect(InetAddress peerAddress) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (this.bindAddress != null) {
+                channel.bind(new InetSocketAddress(this.bindAddress, 0));
+            }
+            channel.socket().connect(new InetSocketAddress(peerAddress, Constants.DISCOVERY_PORT), Constants.TRACKER_REQUEST_TIMEOUT_MILLIS);
+            return this.newLink(channel, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private PeerDiscoveryTransceiver newLink(SocketChannel channel, boolean outgoing) throws IOException {
+        DiscoveryEventLoop eventLoop = this.eventLoops[Math.floorMod(this.nextEventLoop.getAndIncrement(), this.eventLoops.length)];
+        SendQueue senderQueue = new SendQueue(Constants.DISCOVERY_QUEUE_CAPACITY, this.statistics);
+        return new PeerDiscoveryTransceiver(channel, outgoing, eventLoop, senderQueue, this.listener, this.statistics);
+    }
+
+    /**
+     * Measures the round trip as the time to open a connection to the peer's transfer server.
+     */
+    @Override
+    public long probeRtt(InetAddress peerAddress) {
+        try (Socket socket = this.newSocket()) {
+            long startNanos = System.nanoTime();
+            socket.connect(new InetSocketAddress(peerAddress, Constants.TRANSFER_PORT), Constants.NEIGHBOR_PROBE_TIMEOUT_MILLIS);
+            return System.nanoTime() - startNanos;
+        } catch (IOException e) {
+            return NeighborSelector.UNREACHABLE;
+        }
+    }
+
+    @Override
+    public JoinReply join() throws IOException {
+        try (Socket trackerSocket = this.connectToTracker()) {
+            trackerSocket.setSoTimeout(Constants.TRACKER_REQUEST_TIMEOUT_MILLIS);
+            DataOutputStream trackerOutput = new DataOutputStream(trackerSocket.getOutputStream());
+            trackerOutput.writeByte(Constants.TRACKER_JOIN);
+            trackerOutput.flush();
+            DataInputStream trackerInput = new DataInputStream(trackerSocket.getInputStream());
+            List<InetAddress> peers = TcpTransport.readPeers(trackerInput);
+            long leaseMillis;
+            try {
+                leaseMillis = trackerInput.readLong();
+            } catch (EOFException e) {
+                // older trackers keep peers until they leave
+                leaseMillis = 0;
+            }
+            return new JoinReply(peers, leaseMillis);
+        }
+    }
+
+    @Override
+    public List<InetAddress> sample() throws IOException {
+        try (Socket trackerSocket = this.connectToTracker()) {
+            trackerSocket.setSoTimeout(Constants.TRACKER_REQUEST_TIMEOUT_MILLIS);
+            DataOutputStream trackerOutput = new DataOutputStream(trackerSocket.getOutputStream());
+            trackerOutput.writeByte(Constants.TRACKER_SAMPLE);
+            trackerOutput.flush();
+            return TcpTransport.readPeers(new DataInputStream(trackerSocket.getInputStream()));
+        }
+    }
+
+    @Override
+    public void heartbeat() throws IOException {
+        this.notifyTracker(Constants.TRACKER_HEARTBEAT);
+    }
+
+    @Override
+    public void leave() throws IOException {
+        this.notifyTracker(Constants.TRACKER_LEAVE);
+    }
+
+    private void notifyTracker(byte request) throws IOException {
+        try (Socket trackerSocket = this.connectToTracker()) {
+            DataOutputStream trackerOutput = new DataOutputStream(trackerSocket.getOutputStream());
+            trackerOutput.writeByte(request);
+            trackerOutput.flush();
+        }
+    }
+
+    private Socket connectToTracker() throws IOException {
+        Socket trackerSocket = this.newSocket();
+        try {
+            trackerSocket.connect(new InetSocketAddress(this.trackerName, Constants.TRACKER_PORT), Constants.TRACKER_REQUEST_TIMEOUT_MILLIS);
+            return trackerSocket;
+        } catch (IOException e) {
+            trackerSocket.close();
+            throw e;
+        }
+    }
+
+    private Socket newSocket() throws IOException {
+        Socket socket = new Socket();
+        if (this.bindAddress != null) {
+            socket.bind(new InetSocketAddress(this.bindAddress, 0));
+        }
+        return socket;
+    }
+
+    private static List<InetAddress> readPeers(DataInputStream trackerInput) throws IOException {
+        List<InetAddress> peers = new ArrayList<>();
+        int peersSize = trackerInput.readInt();
+        for (int i = 0; i < peersSize; i++) {
+            int peerAddressSize = trackerInput.readInt();
+            byte[] peerAddress = new byte[peerAddressSize];
+            trackerInput.readFully(peerAddress);
+            peers.add(InetAddress.getByAddress(peerAddress));
+        }
+        return peers;
+    }
+
+    private class DiscoveryListener extends ListenerTask {
+        DiscoveryListener() {
+            super(TcpTransport.this.bindAddress, Constants.DISCOVERY_PORT);
+        }
+
+        @Override
+        protected void handleConnection(Socket socket) throws IOException {
+            TcpTransport.this.listener.linkAccepted(TcpTransport.this.newLink(socket.getChannel(), false));
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package pfs.tasks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of tracker membership: a compacted snapshot plus append-only journals of joins
+ * and leaves since. Heartbeats are not journaled; leases restart on recovery and reconcile from there.
+ * <p>
+ * Appends only copy the record into memory. {@link #flush} writes and syncs them in one batch, so a
+ * crash loses at most one flush interval of changes, which later heartbeats restore.
+ * Journals are numbered by generation. Compaction starts a new generation before copying the
+ * membership, then writes a snapshot covering every older generation and deletes those journals,
+ * so a crash at any point leaves a snapshot and journals that replay to the right membership.
+ * <p>
+ * Journal records are an op byte, the address length and bytes, and a CRC32 of the three;
+ * replay stops at the first torn record. The snapshot is magic, version, the first generation not
+ * covered, the member count, the addresses, and a CRC32 of everything before it.
+ */
+class TrackerJournal {
+    private static final int SNAPSHOT_MAGIC = 0x50465354; // "PFST"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte OP_JOIN = 0;
+    private static final byte OP_LEAVE = 1;
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String SNAPSHOT_NAME = "snapshot";
+    private static final int MIN_COMPACTION_RECORDS = 4096;
+
+    private final Path directory;
+    private final Object flushLock;
+
+    private ByteBuffer pending; // guarded by this
+    private ByteBuffer flushing; // guarded by flushLock
+    private FileChannel channel; // guarded by flushLock
+    private long generation; // guarded by flushLock
+    private long recordCount; // records since the last snapshot, guarded by this
+
+    TrackerJournal(Path directory) {
+        this.directory = directory;
+        this.flushLock = new Object();
+        this.pending = ByteBuffer.allocate(1 << 12);
+        this.flushing = ByteBuffer.allocate(1 << 12);
+    }
+
+    /**
+     * Replays the snapshot and journals, then opens a fresh journal for new records.
+     *
+     * @return the peers that were members when the tracker stopped
+     */
+    List<InetAddress> recover() throws IOException {
+        Files.createDirectories(this.directory);
+        Set<InetAddress> members = new LinkedHashSet<>();
+        long firstGeneration = this.loadSnapshot(members);
+        TreeMap<Long, Path> journals = this.listJournals();
+        long records = 0;
+        for (Map.Entry<Long, Path> journal : journals.entrySet()) {
+            if (journal.getKey() >= firstGeneration) {
+                records += TrackerJournal.replay(journal.getValue(), members);
+            }
+        }
+        synchronized (this.flushLock) {
+            // never append after a possibly torn tail: every start gets a new generation
+            this.generation = Math.max(firstGeneration, journals.isEmpty() ? 0 : journals.lastKey() + 1);
+            this.channel = this.openJournal(this.generation);
+        }
+        synchronized (this) {
+            this.recordCount = records;
+        }
+        return new ArrayList<>(members);
+    }
+
+    void recordJoin(InetAddress peer) {
+        this.append(OP_JOIN, peer);
+    }
+
+    void recordLeave(InetAddress peer) {
+        this.append(OP_LEAVE, peer);
+    }
+
+    /**
+     * @return true once enough records piled up that replaying them costs more than a snapshot
+     */
+    synchronized boolean needsCompaction(int memberCount) {
+        return this.recordCount > Math.max(MIN_COMPACTION_RECORDS, 2L * memberCount);
+    }
+
+    /**
+     * Writes and syncs every record appended so far.
+     */
+    void flush() throws IOException {
+        synchronized (this.flushLock) {
+            synchronized (this) {
+                ByteBuffer swap = this.pending;
+                this.pending = this.flushing;
+                this.flushing = swap;
+            }
+            this.flushing.flip();
+            if (this.flushing.hasRemaining() && this.channel != null) {
+                while (this.flushing.hasRemaining()) {
+                    this.channel.write(this.flushing);
+                }
+                this.channel.force(false);
+            }
+            this.flushing.clear();
+        }
+    }
+
+    /**
+     * Replaces the journals with a snapshot of {@code membership}.
+     */
+    void compact(TrackerMembership membership) throws IOException {
+        long snapshotGeneration;
+        synchronized (this.flushLock) {
+            this.flush();
+            this.channel.close();
+            this.generation++;
+            this.channel = this.openJournal(this.generation);
+            snapshotGeneration = this.generation;
+        }
+        // every change journaled in an older generation happened before this copy
+        List<InetAddress> members = membership.members();
+        synchronized (this) {
+            this.recordCount = 0;
+        }
+        this.saveSnapshot(snapshotGeneration, members);
+        for (Map.Entry<Long, Path> journal : this.listJournals().headMap(snapshotGeneration).entrySet()) {
+            Files.deleteIfExists(journal.getValue());
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (this.flushLock) {
+            this.flush();
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+        }
+    }
+
+    private synchronized void append(byte op, InetAddress peer) {
+        byte[] address = peer.getAddress();
+        int recordLength = 2 + address.length + Integer.BYTES;
+        if (this.pending.remaining() < recordLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(this.pending.capacity() * 2, this.pending.position() + recordLength));
+            this.pending.flip();
+            grown.put(this.pending);
+            this.pending = grown;
+        }
+        int start = this.pending.position();
+        this.pending.put(op).put((byte) address.length).put(address);
+        CRC32 crc = new CRC32();
+        crc.update(this.pending.array(), start, this.pending.position() - start);
+        this.pending.putInt((int) crc.getValue());
+        this.recordCount++;
+    }
+
+    private static long replay(Path journal, Set<InetAddress> members) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(journal));
+        long records = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position();
+            byte op = buffer.get();
+            int length = buffer.get() & 0xFF;
+            if ((length != 4 && length != 16) || buffer.remaining() < length + Integer.BYTES) {
+                break;
+            }
+            byte[] address = new byte[length];
+            buffer.get(address);
+            crc.reset();
+            crc.update(buffer.array(), start, 2 + length);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+            InetAddress peer = InetAddress.getByAddress(address);
+            if (op == OP_JOIN) {
+                members.add(peer);
+            } else {
+                members.remove(peer);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * @return the first journal generation the snapshot does not cover, or 0 without a usable snapshot
+     */
+    private long loadSnapshot(Set<InetAddress> members) throws IOException {
+        Path snapshotPath = this.directory.resolve(SNAPSHOT_NAME);
+        if (!Files.isRegularFile(snapshotPath)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        try {
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                return 0;
+            }
+            long firstGeneration = buffer.getLong();
+            int count = buffer.getInt();
+            List<InetAddress> snapshotMembers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] address = new byte[buffer.get() & 0xFF];
+                buffer.get(address);
+                snapshotMembers.add(InetAddress.getByAddress(address));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, buffer.position());
+            if (buffer.getInt() != (int) crc.getValue()) {
+                return 0;
+            }
+            members.addAll(snapshotMembers);
+            return firstGeneration;
+        } catch (RuntimeException e) {
+            // truncated or corrupt snapshot: the journals alone are the best record left
+            return 0;
+        }
+    }
+
+    private void saveSnapshot(long firstGeneration, Collection<InetAddress> members) throws IOException {
+        int size = 2 * Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+        for (InetAddress member : members) {
+            size += 1 + member.getAddress().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(firstGeneration).putInt(members.size());
+        for (InetAddress member : members) {
+            byte[] address = member.getAddress();
+            buffer.put((byte) address.length).put(address);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path snapshotPath = this.directory.resolve(SNAPSHOT_NAME);
+        Path tempPath = snapshotPath.resolveSibling(SNAPSHOT_NAME + ".tmp");
+        try (FileChannel snapshotChannel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                snapshotChannel.write(buffer);
+            }
+            snapshotChannel.force(true);
+        }
+        Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private FileChannel openJournal(long journalGeneration) throws IOException {
+        return FileChannel.open(this.directory.resolve(String.format("%s%016x", JOURNAL_PREFIX, journalGeneration)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private TreeMap<Long, Path> listJournals() throws IOException {
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, JOURNAL_PREFIX + "*")) {
+            for (Path path : stream) {
+                try {
+                    journals.put(Long.parseUnsignedLong(path.getFileName().toString().substring(JOURNAL_PREFIX.length()), 16), path);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return journals;
+    }
+}
@@ -0,0 +1,138 @@
+package pfs.tasks;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Live peers known to the tracker, each holding a lease that heartbeats renew.
+ * Renewing a known peer only writes its expiration, without locking. Joins, leaves and expiry
+ * briefly lock a dense slot array, which lets {@link #sample} pick random peers in time
+ * proportional to the sample rather than the membership.
+ */
+class TrackerMembership {
+    private final long leaseMillis;
+    private final ConcurrentMap<InetAddress, Lease> leases;
+
+    private Lease[] slots; // guarded by this
+    private int size;
+
+    private static class Lease {
+        private final InetAddress address;
+        private volatile long expiration;
+        private int slot;
+
+        private Lease(InetAddress address, long expiration) {
+            this.address = address;
+            this.expiration = expiration;
+        }
+    }
+
+    TrackerMembership(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+        this.leases = new ConcurrentHashMap<>();
+        this.slots = new Lease[64];
+    }
+
+    long getLeaseMillis() {return this.leaseMillis;}
+
+    int size() {return this.leases.size();}
+
+    /**
+     * Starts or extends the lease of {@code address}.
+     *
+     * @return true if the peer was not a member before
+     */
+    boolean renew(InetAddress address, long now) {
+        Lease lease = this.leases.get(address);
+        if (lease != null) {
+            lease.expiration = now + this.leaseMillis;
+            return false;
+        }
+        synchronized (this) {
+            lease = this.leases.get(address);
+            if (lease != null) {
+                lease.expiration = now + this.leaseMillis;
+                return false;
+            }
+            lease = new Lease(address, now + this.leaseMillis);
+            if (this.size == this.slots.length) {
+                Lease[] grown = new Lease[this.slots.length * 2];
+                System.arraycopy(this.slots, 0, grown, 0, this.size);
+                this.slots = grown;
+            }
+            lease.slot = this.size;
+            this.slots[this.size++] = lease;
+            this.leases.put(address, lease);
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the peer was a member
+     */
+    synchronized boolean remove(InetAddress address) {
+        Lease lease = this.leases.remove(address);
+        if (lease == null) {
+            return false;
+        }
+        this.removeSlot(lease.slot);
+        return true;
+    }
+
+    /**
+     * Drops every peer whose lease ran out.
+     *
+     * @return the expired peers
+     */
+    synchronized List<InetAddress> expire(long now) {
+        List<InetAddress> expired = new ArrayList<>();
+        for (int i = this.size - 1; i >= 0; i--) {
+            Lease lease = this.slots[i];
+            if (lease.expiration < now) {
+                this.leases.remove(lease.address);
+                this.removeSlot(i);
+                expired.add(lease.address);
+            }
+        }
+        return expired;
+    }
+
+    synchronized List<InetAddress> members() {
+        List<InetAddress> members = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            members.add(this.slots[i].address);
+        }
+        return members;
+    }
+
+    /**
+     * @return up to {@code count} distinct live peers other than {@code exclude}, in random order
+     */
+    synchronized List<InetAddress> sample(int count, InetAddress exclude, long now, Random random) {
+        List<InetAddress> sample = new ArrayList<>(Math.min(count, this.size));
+        // partial Fisher-Yates over the slots; members are unordered, so the shuffle can stay
+        for (int i = 0; i < this.size && sample.size() < count; i++) {
+            int j = i + random.nextInt(this.size - i);
+            Lease lease = this.slots[j];
+            this.slots[j] = this.slots[i];
+            this.slots[j].slot = j;
+            this.slots[i] = lease;
+            lease.slot = i;
+            if (lease.expiration >= now && !lease.address.equals(exclude)) {
+                sample.add(lease.address);
+            }
+        }
+        return sample;
+    }
+
+    private void removeSlot(int slot) {
+        Lease last = this.slots[--this.size];
+        this.slots[slot] = last;
+        last.slot = slot;
+        this.slots[this.size] = null;
+    }
+}
@@ -1,46 +1,195 @@
 package pfs.tasks;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import pfs.Constants;
+import pfs.EventLog;
 
+/**
+ * Tracks the live peers of the network.
+ * Requests are served concurrently on a bounded pool. A join answers with a random sample of at most
+ * {@link Constants#TRACKER_SAMPLE_SIZE} live peers followed by the lease length; peers then renew
+ * their lease with heartbeats, and peers that stop sending them are expired in the background.
+ * Members ask for further samples when they need more neighbors.
+ * Joins and leaves are journaled by {@link TrackerJournal}, so a restarted tracker recovers the
+ * membership at once and gives every recovered peer a fresh lease to renew.
+ */
 public class TrackerServer extends ListenerTask {
-    private final List<InetAddress> peers;
+    private final TrackerMembership membership;
+    private TrackerJournal journal; // null when membership is not persisted
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService maintenanceScheduler;
 
     public TrackerServer() {
         super(Constants.TRACKER_PORT);
-        this.peers = new ArrayList<>();
+        this.membership = new TrackerMembership(Constants.TRACKER_LEASE_MILLIS);
+        this.journal = Constants.TRACKER_JOURNAL_DIR.isEmpty() ? null : new TrackerJournal(Path.of(Constants.TRACKER_JOURNAL_DIR));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                Constants.TRACKER_THREADS,
+                Constants.TRACKER_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Constants.TRACKER_BACKLOG),
+                (Runnable task) -> {
+                    Thread thread = new Thread(task);
+                    thread.setName("tracker-worker-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+        this.maintenanceScheduler = Executors.newSingleThreadScheduledExecutor((Runnable task) -> {
+            Thread thread = new Thread(task);
+            thread.setName("tracker-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void run() {
+        if (this.journal != null) {
+            try {
+                this.recoverMembership();
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.WARN, "could not open membership journal, peers must rejoin after a restart: " + e.getMessage());
+                this.journal = null;
+            }
+        }
+        if (this.journal != null) {
+            this.maintenanceScheduler.scheduleWithFixedDelay(this::flushJournal,
+                    Constants.TRACKER_JOURNAL_FLUSH_MILLIS, Constants.TRACKER_JOURNAL_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        this.maintenanceScheduler.scheduleWithFixedDelay(this::expireLeases,
+                Constants.TRACKER_EXPIRY_INTERVAL_MILLIS, Constants.TRACKER_EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        super.run();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        super.stop();
+        this.executor.shutdownNow();
+        this.maintenanceScheduler.shutdownNow();
+        if (this.journal != null) {
+            this.journal.close();
+        }
     }
 
     @Override
     protected void handleConnection(Socket socket) throws IOException {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    this.serveRequest(socket);
+                } catch (IOException ignored) {
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // overloaded: the peer sees a closed connection and retries
+            socket.close();
+        }
+    }
+
+    private void serveRequest(Socket socket) throws IOException {
         try (
                 DataInputStream in = new DataInputStream(socket.getInputStream());
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream())
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
         ) {
+            socket.setSoTimeout(Constants.TRACKER_REQUEST_TIMEOUT_MILLIS);
             byte message = in.readByte();
-            if (message == 0) {
-                // trying to join network
-                out.writeInt(this.peers.size());
-                for (InetAddress peer : this.peers) {
-                    byte[] peerAddress = peer.getAddress();
-                    out.writeInt(peerAddress.length);
-                    out.write(peerAddress);
+            InetAddress peer = socket.getInetAddress();
+            long now = System.currentTimeMillis();
+            if (message == Constants.TRACKER_JOIN) {
+                this.writeSample(out, peer, now);
+                // older peers stop reading after the list
+                out.writeLong(this.membership.getLeaseMillis());
+                out.flush();
+                if (this.membership.renew(peer, now)) {
+                    this.recordJoin(peer);
                 }
+                EventLog.address(EventLog.Level.INFO, "ARRIVE:", peer);
+            } else if (message == Constants.TRACKER_LEAVE) {
+                if (this.membership.remove(peer)) {
+                    this.recordLeave(peer);
+                    EventLog.address(EventLog.Level.INFO, "DEPART:", peer);
+                }
+            } else if (message == Constants.TRACKER_SAMPLE) {
+                // members looking for more neighbors; only heartbeats renew the lease
+                this.writeSample(out, peer, now);
                 out.flush();
-                this.peers.add(socket.getInetAddress());
-                System.out.println("ARRIVE: " + socket.getInetAddress().getCanonicalHostName());
-            } else if (message == 1) {
-                this.peers.remove(socket.getInetAddress());
-                System.out.println("DEPART: " + socket.getInetAddress().getCanonicalHostName());
+            } else if (message == Constants.TRACKER_HEARTBEAT) {
+                if (this.membership.renew(peer, now)) {
+                    this.recordJoin(peer);
+                    EventLog.address(EventLog.Level.INFO, "ARRIVE:", peer);
+                }
             }
         } finally {
             socket.close();
         }
     }
+
+    private void writeSample(DataOutputStream out, InetAddress peer, long now) throws IOException {
+        List<InetAddress> sample = this.membership.sample(Constants.TRACKER_SAMPLE_SIZE, peer, now, ThreadLocalRandom.current());
+        out.writeInt(sample.size());
+        for (InetAddress member : sample) {
+            byte[] peerAddress = member.getAddress();
+            out.writeInt(peerAddress.length);
+            out.write(peerAddress);
+        }
+    }
+
+    private void expireLeases() {
+        for (InetAddress peer : this.membership.expire(System.currentTimeMillis())) {
+            this.recordLeave(peer);
+            EventLog.address(EventLog.Level.INFO, "EXPIRE:", peer);
+        }
+    }
+
+    private void recoverMembership() throws IOException {
+        long startNanos = System.nanoTime();
+        List<InetAddress> members = this.journal.recover();
+        long now = System.currentTimeMillis();
+        for (InetAddress member : members) {
+            this.membership.renew(member, now);
+        }
+        EventLog.text(EventLog.Level.INFO, String.format("RECOVERED %d peers in %d ms",
+                members.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+    }
+
+    private void flushJournal() {
+        try {
+            this.journal.flush();
+            if (this.journal.needsCompaction(this.membership.size())) {
+                this.journal.compact(this.membership);
+            }
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, "could not write membership journal: " + e.getMessage());
+        }
+    }
+
+    private void recordJoin(InetAddress peer) {
+        if (this.journal != null) {
+            this.journal.recordJoin(peer);
+        }
+    }
+
+    private void recordLeave(InetAddress peer) {
+        if (this.journal != null) {
+            this.journal.recordLeave(peer);
+        }
+    }
 }
@@ -0,0 +1,177 @@
+package pfs.tasks;
+
+import pfs.Constants;
+import pfs.ContentHash;
+import pfs.FileDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves ranged file requests from peers.
+ * Connections run on virtual threads when enabled and available, otherwise on a bounded pool.
+ * At most {@link Constants#TRANSFER_MAX_UPLOADS} uploads stream at once; anything beyond that
+ * is answered with {@link Constants#TRANSFER_STATUS_BUSY} so the client backs off and retries.
+ * A request for length {@link Constants#TRANSFER_REQUEST_HASHES} is answered with the chunk
+ * hashes of the file's {@link ContentHash} instead of content.
+ */
+public class TransferServer extends ListenerTask {
+    private final FileDirectory directory;
+    private final ExecutorService executor;
+    private final Semaphore uploadPermits;
+    private final TransferStatistics statistics;
+
+    public TransferServer(FileDirectory directory) {
+        this(directory, null, new TransferStatistics());
+    }
+
+    /**
+     * @param bindAddress the address to listen on, or null for every interface
+     */
+    TransferServer(FileDirectory directory, InetAddress bindAddress, TransferStatistics statistics) {
+        super(bindAddress, Constants.TRANSFER_PORT);
+        this.directory = directory;
+        this.executor = TransferServer.newExecutor();
+        this.uploadPermits = new Semaphore(Constants.TRANSFER_MAX_UPLOADS);
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected void handleConnection(Socket socket) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    this.serveRequest(socket);
+                } catch (IOException ignored) {
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // even the backlog is full: answer from the accept thread without reading the request
+            this.statistics.recordBusy();
+            try (DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                TransferServer.writeBusy(out);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        super.stop();
+        this.executor.shutdownNow();
+    }
+
+    private void serveRequest(Socket socket) throws IOException {
+        try (
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream())
+        ) {
+            socket.setSoTimeout(200);
+            String fileName = in.readUTF();
+            long offset = in.readLong();
+            long length = in.readLong();
+            FileDirectory.FileEntry entry = this.directory.searchByFileName(fileName);
+            if (entry == null) {
+                out.writeByte(Constants.TRANSFER_STATUS_NOT_FOUND);
+                out.flush();
+                return;
+            }
+            if (!this.uploadPermits.tryAcquire()) {
+                this.statistics.recordBusy();
+                TransferServer.writeBusy(out);
+                return;
+            }
+
+            this.statistics.recordUploadStarted();
+            long bytesUploaded = 0;
+            try {
+                if (length == Constants.TRANSFER_REQUEST_HASHES) {
+                    ContentHash contentHash = this.directory.contentHashOf(entry);
+                    out.writeByte(Constants.TRANSFER_STATUS_OK);
+                    out.writeLong(entry.contentLength);
+                    out.writeInt(contentHash.getChunkSize());
+                    out.writeInt(contentHash.getChunkHashes().length);
+                    for (byte[] chunkHash : contentHash.getChunkHashes()) {
+                        out.write(chunkHash);
+                    }
+                    out.flush();
+                    return;
+                }
+                out.writeByte(Constants.TRANSFER_STATUS_OK);
+                out.writeLong(entry.contentLength);
+                out.flush();
+                try (FileChannel fileChannel = this.directory.openFileChannel(fileName)) {
+                    // sendfile straight from the page cache when the socket is channel-backed
+                    WritableByteChannel target = socket.getChannel();
+                    if (target == null) {
+                        target = Channels.newChannel(out);
+                    }
+                    offset = Math.max(0, Math.min(offset, entry.contentLength));
+                    long position = entry.headerLength + offset;
+                    long remaining = Math.min(length, entry.contentLength - offset);
+                    while (remaining > 0) {
+                        long bytesSent = fileChannel.transferTo(position, remaining, target);
+                        if (bytesSent <= 0) {
+                            break;
+                        }
+                        position += bytesSent;
+                        remaining -= bytesSent;
+                        bytesUploaded += bytesSent;
+                    }
+                }
+            } finally {
+                this.statistics.recordUploadFinished(bytesUploaded);
+                this.uploadPermits.release();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void writeBusy(DataOutputStream out) throws IOException {
+        out.writeByte(Constants.TRANSFER_STATUS_BUSY);
+        out.writeInt(Constants.TRANSFER_RETRY_AFTER_MILLIS);
+        out.flush();
+    }
+
+    private static ExecutorService newExecutor() {
+        if (Constants.TRANSFER_VIRTUAL_THREADS) {
+            try {
+                // looked up reflectively so the code still builds and runs on JDKs without virtual threads
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Constants.TRANSFER_THREADS,
+                Constants.TRANSFER_THREADS,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Constants.TRANSFER_BACKLOG),
+                (Runnable task) -> {
+                    Thread thread = new Thread(task);
+                    thread.setName("transfer-worker-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
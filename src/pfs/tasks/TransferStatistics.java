@@ -0,0 +1,87 @@
+package pfs.tasks;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Upload and download counts of a node, with the bytes moved and the throughput of each download.
+ */
+public class TransferStatistics {
+    private final LongAdder activeUploads;
+    private final LongAdder uploads;
+    private final LongAdder bytesUploaded;
+    private final LongAdder busyRejections;
+    private final LongAdder activeDownloads;
+    private final LongAdder downloads;
+    private final LongAdder bytesDownloaded;
+    private final Histogram downloadKilobytesPerSecond;
+
+    TransferStatistics() {
+        this.activeUploads = new LongAdder();
+        this.uploads = new LongAdder();
+        this.bytesUploaded = new LongAdder();
+        this.busyRejections = new LongAdder();
+        this.activeDownloads = new LongAdder();
+        this.downloads = new LongAdder();
+        this.bytesDownloaded = new LongAdder();
+        this.downloadKilobytesPerSecond = new Histogram();
+    }
+
+    void recordUploadStarted() {
+        this.activeUploads.increment();
+    }
+
+    void recordUploadFinished(long bytes) {
+        this.activeUploads.decrement();
+        this.uploads.increment();
+        this.bytesUploaded.add(bytes);
+    }
+
+    void recordBusy() {
+        this.busyRejections.increment();
+    }
+
+    void recordDownloadStarted() {
+        this.activeDownloads.increment();
+    }
+
+    /**
+     * @param bytes 0 if the download failed
+     */
+    void recordDownloadFinished(long bytes, long elapsedNanos) {
+        this.activeDownloads.decrement();
+        if (bytes > 0) {
+            this.downloads.increment();
+            this.bytesDownloaded.add(bytes);
+            this.downloadKilobytesPerSecond.record((long) (bytes * 1e9 / 1024 / Math.max(1, elapsedNanos)));
+        }
+    }
+
+    public long getActiveUploads() {return this.activeUploads.sum();}
+
+    public long getUploads() {return this.uploads.sum();}
+
+    public long getBytesUploaded() {return this.bytesUploaded.sum();}
+
+    /**
+     * @return requests answered as busy because every upload slot was taken
+     */
+    public long getBusyRejections() {return this.busyRejections.sum();}
+
+    public long getActiveDownloads() {return this.activeDownloads.sum();}
+
+    public long getDownloads() {return this.downloads.sum();}
+
+    public long getBytesDownloaded() {return this.bytesDownloaded.sum();}
+
+    void addTo(Map<String, Number> snapshot) {
+        snapshot.put("transfer.uploads.active", this.getActiveUploads());
+        snapshot.put("transfer.uploads", this.getUploads());
+        snapshot.put("transfer.uploads.bytes", this.getBytesUploaded());
+        snapshot.put("transfer.uploads.busy", this.getBusyRejections());
+        snapshot.put("transfer.downloads.active", this.getActiveDownloads());
+        snapshot.put("transfer.downloads", this.getDownloads());
+        snapshot.put("transfer.downloads.bytes", this.getBytesDownloaded());
+        this.downloadKilobytesPerSecond.addTo(snapshot, "transfer.downloads.kilobytesPerSecond");
+    }
+}
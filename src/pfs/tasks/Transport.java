@@ -0,0 +1,98 @@
+package pfs.tasks;
+
+import pfs.FileDirectory;
+import pfs.messages.Message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Everything a {@link Node} needs from the network it runs on: discovery links, round-trip
+ * probes, the tracker, and the clock and threads its timers run on.
+ * {@link TcpTransport} connects real sockets; {@link InMemoryTransport} links nodes of an
+ * {@link InMemoryNetwork} in virtual time.
+ */
+interface Transport {
+    interface Listener {
+        /**
+         * A peer opened {@code link} to this node; it is not started yet.
+         */
+        void linkAccepted(Link link);
+
+        void messageReceived(Message message, InetAddress neighborAddress);
+
+        /**
+         * {@code link} failed or was closed by the neighbor.
+         */
+        void linkClosed(Link link);
+    }
+
+    class JoinReply {
+        final List<InetAddress> peers;
+        final long leaseMillis; // 0 if the tracker keeps peers until they leave
+
+        JoinReply(List<InetAddress> peers, long leaseMillis) {
+            this.peers = peers;
+            this.leaseMillis = leaseMillis;
+        }
+    }
+
+    /**
+     * @return the address this node is known by
+     */
+    InetAddress getLocalAddress();
+
+    LinkStatistics getLinkStatistics();
+
+    TransferStatistics getTransferStatistics();
+
+    long currentTimeMillis();
+
+    /**
+     * @return a single-threaded scheduler for the node's timers or message handling
+     */
+    ScheduledExecutorService newScheduler(String name);
+
+    /**
+     * Starts accepting links, which are handed to {@code listener}, and serving the files of {@code directory}.
+     */
+    void start(FileDirectory directory, Listener listener) throws IOException;
+
+    /**
+     * Stops accepting links and serving files; open links stay up.
+     */
+    void stop() throws IOException;
+
+    /**
+     * Closes {@code links} once the messages queued on them had a chance to go out, then
+     * releases whatever the transport still holds.
+     */
+    void shutdown(Collection<Link> links) throws IOException, InterruptedException;
+
+    /**
+     * @return an unstarted link to {@code peerAddress}
+     */
+    Link connect(InetAddress peerAddress) throws IOException;
+
+    /**
+     * @return the round-trip time to {@code peerAddress} in nanoseconds, or {@link NeighborSelector#UNREACHABLE}
+     */
+    long probeRtt(InetAddress peerAddress);
+
+    /**
+     * Registers this node with the tracker.
+     */
+    JoinReply join() throws IOException;
+
+    /**
+     * @return a fresh random sample of the live peers
+     */
+    List<InetAddress> sample() throws IOException;
+
+    void heartbeat() throws IOException;
+
+    void leave() throws IOException;
+}
@@ -0,0 +1,124 @@
+package pfs.tasks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduled executor whose tasks are events of an {@link InMemoryNetwork}, run on the simulation
+ * thread at their virtual time. Tasks take no virtual time, so fixed-rate and fixed-delay
+ * schedules coincide. Shutting down drops every task not run yet, which is how a crashed node's
+ * timers stop.
+ */
+class VirtualTimeScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+    private final InMemoryNetwork network;
+    private boolean shutdown;
+
+    private class VirtualTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long periodMillis; // 0 for one-shot tasks
+        private long timeMillis;
+
+        private VirtualTask(Callable<V> callable, long timeMillis, long periodMillis) {
+            super(callable);
+            this.timeMillis = timeMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public void run() {
+            if (VirtualTimeScheduler.this.shutdown || this.isCancelled()) {
+                return;
+            }
+            if (this.periodMillis == 0) {
+                super.run();
+            } else if (super.runAndReset() && !VirtualTimeScheduler.this.shutdown) {
+                this.timeMillis += this.periodMillis;
+                VirtualTimeScheduler.this.network.scheduleAt(this.timeMillis, this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.timeMillis - VirtualTimeScheduler.this.network.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(this.getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    VirtualTimeScheduler(InMemoryNetwork network) {
+        this.network = network;
+    }
+
+    private <V> VirtualTask<V> submitAt(Callable<V> callable, long delay, long period, TimeUnit unit) {
+        if (this.shutdown) {
+            throw new RejectedExecutionException("scheduler is shut down");
+        }
+        // time only advances in whole milliseconds
+        long periodMillis = period == 0 ? 0 : Math.max(1, unit.toMillis(period));
+        VirtualTask<V> task = new VirtualTask<>(callable,
+                this.network.currentTimeMillis() + Math.max(0, unit.toMillis(delay)), periodMillis);
+        this.network.scheduleAt(task.timeMillis, task);
+        return task;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        this.submitAt(Executors.callable(command), 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return this.submitAt(Executors.callable(command), delay, 0, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return this.submitAt(callable, delay, 0, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return this.submitAt(Executors.callable(command), initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return this.scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        this.shutdown = true;
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {return this.shutdown;}
+
+    @Override
+    public boolean isTerminated() {return this.shutdown;}
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return this.shutdown;
+    }
+}